@@ -0,0 +1,300 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.videoio.VideoWriter;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+ *  Video recording off the camera thread.  offer copies (and rotates) the frame into one of a
+ *  fixed ring of reused Mats and returns at once, a writer thread converts the frames to BGR and
+ *  encodes them.  When the ring is full the frame is dropped from the recording instead of
+ *  holding up the preview.  The frame rate is not fixed: the writer measures it from the capture
+ *  timestamps of the first frames before opening the VideoWriter, and afterwards repeats or skips
+ *  frames to keep the recording on that frame grid so it plays back at the speed it was captured.
+ *  rotation is a Core.ROTATE_* code applied to every frame, -1 for none, the camera passes the
+ *  device orientation at the start of the recording.
+ *
+ *  options (all optional):
+ *    fourcc   - four character codec code, e.g. 'MJPG', 'avc1', 'H264', 'mp4v' ('MJPG'), which
+ *               codecs are available depends on how OpenCV was built
+ *    fps      - fixed frame rate instead of measuring it
+ * *    ringSize - number of frames that can wait for the encoder (6)
+ */
+class AsyncVideoWriter {
+
+    private static final String TAG = AsyncVideoWriter.class.getSimpleName();
+
+    private static final int DEFAULT_RING_SIZE = 6;
+    private static final double MIN_FPS = 1.0;
+    private static final double MAX_FPS = 120.0;
+
+    private final String outPath;
+    private final int fourcc;
+    private final double fixedFps;
+    private final int rotation;
+    private final int fpsSampleFrames;
+
+    private static final class Frame {
+        final Mat mat = new Mat();
+        long timestampNanos;
+    }
+
+    private final ArrayBlockingQueue<Frame> freeFrames;
+    private final ArrayBlockingQueue<Frame> filledFrames;
+    private final Thread writerThread;
+    private volatile boolean stopping = false;
+    // set once the writer thread is done, after a failure frames are no longer taken
+    private volatile boolean closed = false;
+    // whichever of stop and the end of the writer thread comes second settles the promise
+    private Promise stopPromise = null;
+    private WritableMap stopResult = null;
+    private boolean stopped = false;
+    private boolean finished = false;
+    private String error = null;
+
+    // only touched by the writer thread
+    private VideoWriter videoWriter = null;
+    private final Mat bgr = new Mat();
+    private double fps = 0;
+    private long firstTimestampNanos = 0;
+    private long framesWritten = 0;
+    private int width = 0;
+    private int height = 0;
+
+    private volatile long framesDropped = 0;
+
+    public AsyncVideoWriter(String outPath, int rotation, ReadableMap options) {
+        String fourccOption = "MJPG";
+        double fpsOption = 0;
+        int ringSize = DEFAULT_RING_SIZE;
+        if (options != null) {
+            fourccOption = options.hasKey("fourcc") ? options.getString("fourcc") : fourccOption;
+            fpsOption = options.hasKey("fps") ? options.getDouble("fps") : fpsOption;
+            ringSize = options.hasKey("ringSize") ? Math.max(2, options.getInt("ringSize")) : ringSize;
+        }
+        if (fourccOption.length() != 4) {
+            throw new IllegalArgumentException("fourcc must be four characters, got '" + fourccOption + "'");
+        }
+        this.outPath = outPath;
+        this.fourcc = VideoWriter.fourcc(fourccOption.charAt(0), fourccOption.charAt(1), fourccOption.charAt(2), fourccOption.charAt(3));
+        this.fixedFps = fpsOption;
+        this.rotation = rotation;
+        // the writer holds the first frames back to time them, one stays free for the camera
+        this.fpsSampleFrames = ringSize - 1;
+
+        freeFrames = new ArrayBlockingQueue<Frame>(ringSize);
+        filledFrames = new ArrayBlockingQueue<Frame>(ringSize);
+        for (int i=0;i < ringSize;i++) {
+            freeFrames.add(new Frame());
+        }
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "RNOpencv3-video");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    // called on the camera thread, returns false if the frame was dropped from the recording
+    public boolean offer(Mat rgba, long timestampNanos) {
+        if (stopping || closed) {
+            return false;
+        }
+        Frame frame = freeFrames.poll();
+        if (frame == null) {
+            framesDropped++;
+            return false;
+        }
+        if (rotation >= 0) {
+            Core.rotate(rgba, frame.mat, rotation);
+        }
+        else {
+            rgba.copyTo(frame.mat);
+        }
+        frame.timestampNanos = timestampNanos;
+        filledFrames.add(frame);
+        if (closed && filledFrames.remove(frame)) {
+            // the writer thread finished while the frame was copied, nothing will release it
+            frame.mat.release();
+            return false;
+        }
+        return true;
+    }
+
+    // finishes writing the frames already offered, then resolves result filled with {uri, width,
+    // height, fps, frames, dropped}, promise is null when nobody waits for the recording
+    public void stop(Promise promise, WritableMap result) {
+        synchronized (this) {
+            stopPromise = promise;
+            stopResult = result;
+            stopped = true;
+            if (finished) {
+                settle();
+                return;
+            }
+        }
+        stopping = true;
+        writerThread.interrupt();
+    }
+
+    // samples are the held back first frames in capture order
+    private double measureFps(ArrayList<Frame> samples) {
+        if (fixedFps > 0) {
+            return fixedFps;
+        }
+        if (samples.size() < 2) {
+            return 30.0;
+        }
+        long first = samples.get(0).timestampNanos;
+        long last = samples.get(samples.size() - 1).timestampNanos;
+        if (last <= first) {
+            return 30.0;
+        }
+        double measured = (samples.size() - 1) * 1e9 / (last - first);
+        return Math.max(MIN_FPS, Math.min(MAX_FPS, measured));
+    }
+
+    private void open(Frame frame, ArrayList<Frame> samples) {
+        fps = measureFps(samples);
+        width = frame.mat.cols();
+        height = frame.mat.rows();
+        firstTimestampNanos = frame.timestampNanos;
+        videoWriter = new VideoWriter(outPath, fourcc, fps, frame.mat.size());
+        if (!videoWriter.isOpened()) {
+            throw new IllegalStateException("Unable to open a video writer for " + outPath + ", the codec may not be available");
+        }
+        Log.i(TAG, "Recording " + width + "x" + height + " at " + fps + " fps to " + outPath);
+    }
+
+    private void write(Frame frame) {
+        // keep the recording on the fps grid: repeat the frame over gaps, skip it if it is early
+        long slot = Math.round((frame.timestampNanos - firstTimestampNanos) * fps / 1e9);
+        if (slot < framesWritten) {
+            return;
+        }
+        long repeats = slot - framesWritten + 1;
+        long maxRepeats = (long)Math.ceil(fps);
+        if (repeats > maxRepeats) {
+            // a gap of over a second is cut to one second, move the grid so later frames line up
+            firstTimestampNanos += Math.round((repeats - maxRepeats) * 1e9 / fps);
+            repeats = maxRepeats;
+        }
+        switch (frame.mat.channels()) {
+            case 4:
+                Imgproc.cvtColor(frame.mat, bgr, Imgproc.COLOR_RGBA2BGR);
+                break;
+            case 1:
+                Imgproc.cvtColor(frame.mat, bgr, Imgproc.COLOR_GRAY2BGR);
+                break;
+            default:
+                Imgproc.cvtColor(frame.mat, bgr, Imgproc.COLOR_RGB2BGR);
+        }
+        for (long i=0;i < repeats;i++) {
+            videoWriter.write(bgr);
+        }
+        framesWritten += repeats;
+    }
+
+    // blocks for the next frame in capture order, null once stopping and none are left
+    private Frame nextFrame() {
+        while (!stopping) {
+            try {
+                return filledFrames.take();
+            } catch (InterruptedException ex) {
+                // stop was called, write what there is
+            }
+        }
+        return filledFrames.poll();
+    }
+
+    private void writeFrame(Frame frame) {
+        try {
+            write(frame);
+        } finally {
+            freeFrames.add(frame);
+        }
+    }
+
+    private void writeLoop() {
+        String failure = null;
+        ArrayList<Frame> samples = new ArrayList<Frame>(fpsSampleFrames);
+        try {
+            // hold back the frames the frame rate is measured from
+            while (samples.size() < fpsSampleFrames) {
+                Frame frame = nextFrame();
+                if (frame == null) {
+                    break;
+                }
+                samples.add(frame);
+            }
+            if (!samples.isEmpty()) {
+                open(samples.get(0), samples);
+                while (!samples.isEmpty()) {
+                    writeFrame(samples.remove(0));
+                }
+                Frame frame;
+                while ((frame = nextFrame()) != null) {
+                    writeFrame(frame);
+                }
+            }
+        } catch (Exception ex) {
+            failure = ex.getMessage();
+            Log.e(TAG, "Recording failed: " + failure);
+        } finally {
+            closed = true;
+            if (videoWriter != null) {
+                videoWriter.release();
+            }
+            bgr.release();
+            for (Frame frame : samples) {
+                frame.mat.release();
+            }
+            Frame frame;
+            while ((frame = freeFrames.poll()) != null) {
+                frame.mat.release();
+            }
+            while ((frame = filledFrames.poll()) != null) {
+                frame.mat.release();
+            }
+        }
+        synchronized (this) {
+            finished = true;
+            error = failure;
+            if (stopped) {
+                settle();
+            }
+        }
+    }
+
+    // called with the lock held once both the writer thread is done and stop was called
+    private void settle() {
+        if (stopPromise == null) {
+            return;
+        }
+        if (error != null) {
+            stopPromise.reject("EGENERIC", error);
+            return;
+        }
+        WritableMap result = stopResult;
+        result.putString("uri", outPath);
+        result.putInt("width", width);
+        result.putInt("height", height);
+        result.putDouble("fps", fps);
+        result.putDouble("frames", framesWritten);
+        result.putDouble("dropped", framesDropped);
+        stopPromise.resolve(result);
+    }
+}
@@ -0,0 +1,148 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.HashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ *  Sits between the camera and RCTDeviceEventEmitter so per frame events do not flood the JS
+ *  thread at 30 to 60 fps.  onFrameSize is only sent when the frame size or rotation changes.
+ *  Any event (onFrameSize, onFacesDetectedCv, CvInvoke callbacks, ...) can be given a minimum
+ *  interval: an event arriving sooner than that after the last one sent replaces any event of the
+ *  same name still waiting and is sent when the interval is up, so JS gets at most one event per
+ *  interval and always the newest one, the last event of a burst is never lost.
+ */
+class CameraEventCoalescer {
+
+    interface Sink {
+        // a WritableNativeMap for the camera, asking the sink keeps the event logic free of the
+        // React Native natives
+        WritableMap createMap();
+
+        void emit(String eventName, WritableMap body);
+    }
+
+    private static final class EventState {
+        long minIntervalNanos = 0;
+        long lastSentNanos = 0;
+        boolean sentOnce = false;
+        WritableMap waiting = null;
+        boolean flushScheduled = false;
+    }
+
+    private final Sink sink;
+    private final HashMap<String, EventState> events = new HashMap<String, EventState>();
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    private int frameWidth = -1;
+    private int frameHeight = -1;
+    private int frameRotation = -1;
+
+    public CameraEventCoalescer(Sink sink) {
+        this.sink = sink;
+        scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RNOpencv3-events");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private EventState stateFor(String eventName) {
+        EventState state = events.get(eventName);
+        if (state == null) {
+            state = new EventState();
+            events.put(eventName, state);
+        }
+        return state;
+    }
+
+    // 0 sends every event as it comes
+    public synchronized void setMinInterval(String eventName, long minIntervalMs) {
+        stateFor(eventName).minIntervalNanos = Math.max(0, minIntervalMs) * 1000000L;
+    }
+
+    // call for every frame, emits onFrameSize only when something changed, returns true if it did
+    public boolean frameSize(int width, int height, int rotation) {
+        synchronized (this) {
+            if (width == frameWidth && height == frameHeight && rotation == frameRotation) {
+                return false;
+            }
+            frameWidth = width;
+            frameHeight = height;
+            frameRotation = rotation;
+        }
+        // same payload as before so existing listeners keep parsing it
+        WritableMap response = sink.createMap();
+        response.putString("payload", "{\"frameSize\":{\"frameWidth\":" + (double)width + ",\"frameHeight\":" +
+            (double)height + ",\"rotation\":" + rotation + "}}");
+        emit("onFrameSize", response);
+        return true;
+    }
+
+    // forgets the last frame size so the next frame reports it again, e.g. after a camera switch
+    public synchronized void resetFrameSize() {
+        frameWidth = -1;
+        frameHeight = -1;
+        frameRotation = -1;
+    }
+
+    public void emit(final String eventName, WritableMap body) {
+        long delayNanos;
+        synchronized (this) {
+            EventState state = stateFor(eventName);
+            long now = System.nanoTime();
+            long sinceLast = now - state.lastSentNanos;
+            if (!state.sentOnce || sinceLast >= state.minIntervalNanos) {
+                state.sentOnce = true;
+                state.lastSentNanos = now;
+                state.waiting = null;
+                delayNanos = -1;
+            }
+            else {
+                state.waiting = body;
+                if (state.flushScheduled) {
+                    return;
+                }
+                state.flushScheduled = true;
+                delayNanos = state.minIntervalNanos - sinceLast;
+            }
+        }
+
+        if (delayNanos < 0) {
+            sink.emit(eventName, body);
+            return;
+        }
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush(eventName);
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void flush(String eventName) {
+        WritableMap body;
+        synchronized (this) {
+            EventState state = stateFor(eventName);
+            state.flushScheduled = false;
+            body = state.waiting;
+            state.waiting = null;
+            if (body == null) {
+                return;
+            }
+            state.lastSentNanos = System.nanoTime();
+        }
+        sink.emit(eventName, body);
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,646 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableMapKeySetIterator;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.face.Facemark;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+import org.opencv.objdetect.Objdetect;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ *  What CvCameraView does with each camera frame, kept apart from the view so it runs without a
+ *  camera.  onFrame runs on the camera thread and does what changes the preview or the
+ *  recording: the front camera flip, the CvInvoke group (which may draw into "rgba"), the overlay,
+ *  pictures and handing the frame to the AsyncVideoWriter.  The frame as shown is then offered to
+ *  a FrameProcessor, face detection and frame streaming run on its thread against the newest
+ *  frame so they can take longer than a frame without slowing the preview.  Every event goes out
+ *  through a CameraEventCoalescer.
+ *
+ *  Setters are called from the UI thread, a new classifier, invoke group or option map is picked
+ *  up with the next frame.
+ */
+class CameraFrameHandler {
+
+    private static final String TAG = CameraFrameHandler.class.getSimpleName();
+
+    private static final float RELATIVE_FACE_SIZE = 0.2f;
+
+    private final CameraEventCoalescer.Sink sink;
+    private final CameraEventCoalescer events;
+    private final FrameProcessor processor;
+
+    private volatile int cameraFacing;
+    private volatile int rotation = -1;
+    private volatile CascadeClassifier faceClassifier = null;
+    private volatile CascadeClassifier eyesClassifier = null;
+    private volatile CascadeClassifier noseClassifier = null;
+    private volatile CascadeClassifier mouthClassifier = null;
+    private volatile Facemark landmarks = null;
+    private volatile ReadableMap cvInvokeGroup = null;
+    private volatile int overlayInterval = 0;
+    private volatile ReadableMap faceTracking = null;
+    private volatile ReadableMap frameStreaming = null;
+
+    private final Object overlayLock = new Object();
+    private Mat overlayMat = null;
+    private final AtomicReference<TakePicBlock> pendingPicture = new AtomicReference<TakePicBlock>();
+    private volatile AsyncVideoWriter videoWriter = null;
+
+    // only touched on the camera thread
+    private CvPipeline pipeline = null;
+    private ReadableMap pipelineGroup = null;
+    private long lastInvokeMillis = -1;
+
+    // only touched on the analysis thread
+    private final Mat equalized = new Mat();
+    private final Mat rotated = new Mat();
+    private boolean facesSent = false;
+    private FaceTracker tracker = null;
+    private CascadeClassifier trackerClassifier = null;
+    private ReadableMap trackerOptions = null;
+    // the features found the last time the cascade saw each tracked face
+    private final HashMap<Integer, String> trackedFeatures = new HashMap<Integer, String>();
+    private FrameStreamer streamer = null;
+    private ReadableMap streamerOptions = null;
+
+    public CameraFrameHandler(CameraEventCoalescer.Sink sink, int cameraFacing) {
+        this.sink = sink;
+        this.cameraFacing = cameraFacing;
+        events = new CameraEventCoalescer(sink);
+        processor = new FrameProcessor(new FrameProcessor.Analyzer() {
+            @Override
+            public void analyze(Mat rgba, Mat gray, long timestampNanos) {
+                analyzeFrame(rgba, gray, timestampNanos);
+            }
+        });
+    }
+
+    public void setCameraFacing(int cameraFacing) {
+        this.cameraFacing = cameraFacing;
+        // the other camera may have another frame size
+        events.resetFrameSize();
+    }
+
+    // Core.ROTATE_* code for the device orientation, -1 for landscape
+    public void setRotation(int rotation) {
+        this.rotation = rotation;
+    }
+
+    public void setClassifier(whichOne classifierType, CascadeClassifier classifier) {
+        switch (classifierType) {
+            case EYES_CLASSIFIER:
+                eyesClassifier = classifier;
+                break;
+            case NOSE_CLASSIFIER:
+                noseClassifier = classifier;
+                break;
+            case MOUTH_CLASSIFIER:
+                mouthClassifier = classifier;
+                break;
+            default:
+            case FACE_CLASSIFIER:
+                faceClassifier = classifier;
+                break;
+        }
+    }
+
+    public void setLandmarks(Facemark landmarks) {
+        this.landmarks = landmarks;
+    }
+
+    public void setCvInvokeGroup(ReadableMap cvInvokeGroup) {
+        this.cvInvokeGroup = cvInvokeGroup;
+    }
+
+    public void setOverlayInterval(int overlayInterval) {
+        this.overlayInterval = overlayInterval;
+    }
+
+    // FaceTracker options, null detects faces on every frame
+    public void setFaceTracking(ReadableMap faceTracking) {
+        this.faceTracking = faceTracking;
+    }
+
+    // FrameStreamer options, null stops streaming
+    public void setFrameStreaming(ReadableMap frameStreaming) {
+        this.frameStreaming = frameStreaming;
+    }
+
+    // {eventName: minimum milliseconds between two events of that name}
+    public void setEventIntervals(ReadableMap eventIntervals) {
+        if (eventIntervals == null) {
+            return;
+        }
+        ReadableMapKeySetIterator iterator = eventIntervals.keySetIterator();
+        while (iterator.hasNextKey()) {
+            String eventName = iterator.nextKey();
+            events.setMinInterval(eventName, (long)eventIntervals.getDouble(eventName));
+        }
+    }
+
+    // copies the overlay, it is blended into every frame from then on
+    public void setOverlay(Mat overlay) {
+        synchronized (overlayLock) {
+            if (overlayMat == null) {
+                overlayMat = new Mat();
+            }
+            overlay.copyTo(overlayMat);
+        }
+    }
+
+    public void takePicture(TakePicBlock takePicBlock) {
+        TakePicBlock previous = pendingPicture.getAndSet(takePicBlock);
+        if (previous != null) {
+            previous.promise.reject("EGENERIC", "takePicture: superseded by another takePicture before a frame arrived");
+        }
+    }
+
+    public void startRecording(ReadableMap options) {
+        AsyncVideoWriter writer = new AsyncVideoWriter(options.getString("filename"), rotation, options);
+        AsyncVideoWriter previous = videoWriter;
+        videoWriter = writer;
+        if (previous != null) {
+            previous.stop(null, null);
+        }
+    }
+
+    public void stopRecording(Promise promise) {
+        AsyncVideoWriter writer = videoWriter;
+        videoWriter = null;
+        if (writer == null) {
+            promise.reject("EGENERIC", "stopRecording: the camera is not recording");
+            return;
+        }
+        writer.stop(promise, sink.createMap());
+    }
+
+    // called on the camera thread for every frame, returns the Mat to show
+    public Mat onFrame(Mat in, Mat ingray, long timestampNanos) {
+        events.frameSize(in.cols(), in.rows(), rotation);
+
+        if (cameraFacing == 1) {
+            Core.flip(in, in, 1);
+            Core.flip(ingray, ingray, 1);
+        }
+
+        runCvInvokeGroup(in, ingray);
+
+        synchronized (overlayLock) {
+            if (overlayMat != null) {
+                Core.addWeighted(in, 1.0, overlayMat, 1.0, 0.0, in);
+            }
+        }
+
+        TakePicBlock takePicBlock = pendingPicture.getAndSet(null);
+        if (takePicBlock != null) {
+            takePicBlock.setMat(in);
+            takePicBlock.run();
+        }
+
+        AsyncVideoWriter writer = videoWriter;
+        if (writer != null) {
+            writer.offer(in, timestampNanos);
+        }
+
+        if (faceClassifier != null || frameStreaming != null) {
+            processor.offer(in, ingray, timestampNanos);
+        }
+        return in;
+    }
+
+    private void runCvInvokeGroup(Mat in, Mat ingray) {
+        ReadableMap group = cvInvokeGroup;
+        if (group == null) {
+            return;
+        }
+        long currMillis = System.currentTimeMillis();
+        if (lastInvokeMillis == -1) {
+            lastInvokeMillis = currMillis;
+        }
+        if (currMillis - lastInvokeMillis < overlayInterval) {
+            return;
+        }
+        lastInvokeMillis = currMillis;
+
+        // compiled once per group so frames do not walk the ReadableMaps or look up methods
+        if (group != pipelineGroup) {
+            if (pipeline != null) {
+                pipeline.releaseScratch();
+                pipeline = null;
+            }
+            pipelineGroup = group;
+            try {
+                pipeline = CvPipeline.compile(group);
+            } catch (Exception ex) {
+                Log.e(TAG, "Unable to compile the cvinvoke group: " + ex.getMessage());
+            }
+        }
+        if (pipeline == null) {
+            return;
+        }
+
+        WritableArray responseArr = pipeline.run(in, ingray);
+        String lastCall = pipeline.lastCallback();
+        int dstMatIndex = pipeline.lastDstMatIndex();
+        if (lastCall != null && !lastCall.equals("") && dstMatIndex >= 0) {
+            WritableMap response = sink.createMap();
+            response.putArray("payload", responseArr);
+            events.emit(lastCall, response);
+        }
+        else if (dstMatIndex <= CvInvoke.SECURITY_EXCEPTION) {
+            // not necessarily an error unless it is one of the exception codes
+            Log.e(TAG, "Exception " + dstMatIndex + " thrown attempting to invoke method.  Check your method name and parameters and make sure they are correct.");
+        }
+    }
+
+    // runs on the analysis thread
+    private void analyzeFrame(Mat rgba, Mat gray, long timestampNanos) {
+        analyzeFaces(gray);
+        streamFrame(rgba, timestampNanos);
+    }
+
+    private void streamFrame(Mat rgba, long timestampNanos) {
+        ReadableMap options = frameStreaming;
+        if (options != streamerOptions) {
+            if (streamer != null) {
+                streamer.release();
+                streamer = null;
+            }
+            streamerOptions = options;
+            if (options != null) {
+                try {
+                    streamer = new FrameStreamer(sink, options);
+                } catch (IllegalArgumentException ex) {
+                    Log.e(TAG, "Unable to stream frames: " + ex.getMessage());
+                }
+            }
+        }
+        if (streamer != null) {
+            streamer.offer(rgba, timestampNanos);
+        }
+    }
+
+    private void dropTracker() {
+        if (tracker != null) {
+            tracker.release();
+            tracker = null;
+        }
+        trackerClassifier = null;
+        trackerOptions = null;
+        trackedFeatures.clear();
+    }
+
+    private void analyzeFaces(Mat gray) {
+        CascadeClassifier classifier = faceClassifier;
+        if (classifier == null) {
+            dropTracker();
+            facesSent = false;
+            return;
+        }
+        int frameRotation = rotation;
+        Imgproc.equalizeHist(gray, equalized);
+        Mat faceGray = equalized;
+        if (frameRotation != -1) {
+            Core.rotate(equalized, rotated, frameRotation);
+            faceGray = rotated;
+        }
+
+        ReadableMap trackingOptions = faceTracking;
+        Rect[] facesArray;
+        int[] faceIds;
+        boolean[] detected;
+        if (trackingOptions != null) {
+            if (tracker == null || classifier != trackerClassifier || trackingOptions != trackerOptions) {
+                dropTracker();
+                tracker = new FaceTracker(classifier, trackingOptions);
+                trackerClassifier = classifier;
+                trackerOptions = trackingOptions;
+            }
+            List<FaceTracker.Face> faces = tracker.update(faceGray);
+            facesArray = new Rect[faces.size()];
+            faceIds = new int[faces.size()];
+            detected = new boolean[faces.size()];
+            for (int i = 0; i < faces.size(); i++) {
+                facesArray[i] = faces.get(i).rect;
+                faceIds[i] = faces.get(i).id;
+                detected[i] = faces.get(i).detected;
+            }
+        }
+        else {
+            dropTracker();
+            facesArray = detectFaces(classifier, faceGray);
+            faceIds = new int[facesArray.length];
+            detected = new boolean[facesArray.length];
+            for (int i = 0; i < facesArray.length; i++) {
+                faceIds[i] = i;
+                detected[i] = true;
+            }
+        }
+
+        //-- fit the 68 landmarks for each face
+        Facemark facemark = landmarks;
+        ArrayList<MatOfPoint2f> landmarkPoints = new ArrayList<MatOfPoint2f>();
+        if (facemark != null && facesArray.length > 0) {
+            MatOfRect faces = new MatOfRect(facesArray);
+            facemark.fit(faceGray, faces, landmarkPoints);
+            faces.release();
+        }
+
+        String faceInfo = "";
+        if (facesArray.length > 0) {
+            HashSet<Integer> seen = new HashSet<Integer>();
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"faces\":[");
+            for (int i = 0; i < facesArray.length; i++) {
+                sb.append(getPartJSON(faceGray, null, facesArray[i], frameRotation));
+                sb.append(",\"faceId\":\"faceId" + faceIds[i] + "\"");
+
+                // the feature cascades only run when the face cascade found the face, in between
+                // a tracked face keeps the features from then, they are relative to the face
+                String features;
+                if (detected[i]) {
+                    features = getFeaturesJSON(faceGray, facesArray[i], frameRotation);
+                    if (trackingOptions != null) {
+                        trackedFeatures.put(faceIds[i], features);
+                    }
+                }
+                else {
+                    features = trackedFeatures.get(faceIds[i]);
+                }
+                seen.add(faceIds[i]);
+                sb.append(features != null ? features : "");
+
+                if (i < landmarkPoints.size()) {
+                    sb.append(getLandmarksJSON(faceGray, landmarkPoints.get(i), frameRotation));
+                }
+                if (i != (facesArray.length - 1)) {
+                    sb.append("},");
+                }
+                else {
+                    sb.append("}");
+                }
+            }
+            sb.append("]}");
+            faceInfo = sb.toString();
+            trackedFeatures.keySet().retainAll(seen);
+        }
+        for (MatOfPoint2f points : landmarkPoints) {
+            points.release();
+        }
+
+        // an empty payload is sent once when the last face goes, not on every frame without faces
+        if (faceInfo.length() > 0 || facesSent) {
+            WritableMap response = sink.createMap();
+            response.putString("payload", faceInfo);
+            events.emit("onFacesDetectedCv", response);
+        }
+        facesSent = faceInfo.length() > 0;
+    }
+
+    private Rect[] detectFaces(CascadeClassifier classifier, Mat faceGray) {
+        int absoluteFaceSize = Math.round(faceGray.rows() * RELATIVE_FACE_SIZE);
+        MatOfRect faces = new MatOfRect();
+        if (landmarks != null) {
+            // more sensitive if determining landmarks
+            classifier.detectMultiScale(faceGray, faces, 1.3, 5, 0|Objdetect.CASCADE_SCALE_IMAGE, new Size(absoluteFaceSize, absoluteFaceSize), new Size());
+        }
+        else {
+            classifier.detectMultiScale(faceGray, faces, 1.1, 2, 0|Objdetect.CASCADE_SCALE_IMAGE, new Size(absoluteFaceSize, absoluteFaceSize), new Size());
+        }
+        Rect[] facesArray = faces.toArray();
+        faces.release();
+        return facesArray;
+    }
+
+    // the eyes, nose and mouth JSON for one face, empty if there is no feature classifier
+    private String getFeaturesJSON(Mat faceGray, Rect faceRect, int frameRotation) {
+        CascadeClassifier eyes = eyesClassifier;
+        CascadeClassifier noses = noseClassifier;
+        CascadeClassifier mouths = mouthClassifier;
+        if (eyes == null && noses == null && mouths == null) {
+            return "";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        Mat dFace = faceGray.submat(faceRect);
+        if (eyes != null) {
+            Rect[] eyesArray = detectParts(eyes, dFace);
+            int eye1Index = -1;
+            double centerY = (double)faceRect.height*0.2;
+            if (eyesArray.length > 0) {
+                eye1Index = closestPart(eyesArray, (double)faceRect.width*0.3, centerY, -1, 0.0);
+                sb.append(getPartJSON(dFace, "firstEye", eyesArray[eye1Index], frameRotation));
+            }
+            if (eyesArray.length > 1) {
+                int eye2Index = closestPart(eyesArray, (double)faceRect.width*0.7, centerY, eye1Index, 0.0);
+                if (eye2Index >= 0) {
+                    sb.append(getPartJSON(dFace, "secondEye", eyesArray[eye2Index], frameRotation));
+                }
+            }
+        }
+
+        if (noses != null) {
+            Rect[] nosesArray = detectParts(noses, dFace);
+            if (nosesArray.length > 0) {
+                int noseIndex = closestPart(nosesArray, (double)faceRect.width*0.5, (double)faceRect.height*0.5, -1, 0.0);
+                sb.append(getPartJSON(dFace, "nose", nosesArray[noseIndex], frameRotation));
+            }
+        }
+
+        if (mouths != null) {
+            // the mouth is looked for in the lower part of the face only
+            Rect mouthROI = new Rect(0,(int)Math.round(dFace.rows()*0.6),dFace.cols(),(int)Math.round(dFace.rows()*0.4));
+            Mat dFaceForMouthDetecting = dFace.submat(mouthROI);
+            Rect[] mouthsArray = detectParts(mouths, dFaceForMouthDetecting);
+            dFaceForMouthDetecting.release();
+            if (mouthsArray.length > 0) {
+                int mouthIndex = closestPart(mouthsArray, (double)faceRect.width*0.5, (double)faceRect.height*0.8, -1,
+                    (double)faceRect.height*0.6);
+                Rect dRect = new Rect(mouthsArray[mouthIndex].x,(int)Math.round(mouthsArray[mouthIndex].y + dFace.rows()*0.6),mouthsArray[mouthIndex].width,mouthsArray[mouthIndex].height);
+                sb.append(getPartJSON(dFace, "mouth", dRect, frameRotation));
+            }
+        }
+        dFace.release();
+        return sb.toString();
+    }
+
+    private static Rect[] detectParts(CascadeClassifier classifier, Mat dFace) {
+        MatOfRect parts = new MatOfRect();
+        classifier.detectMultiScale(dFace, parts, 1.1, 2, 0, new Size(), new Size());
+        Rect[] partsArray = parts.toArray();
+        parts.release();
+        return partsArray;
+    }
+
+    // index of the part whose center is closest to centerX, centerY, skipping the part at skip,
+    // offsetY moves the parts down when they were found in a lower part of the face
+    private static int closestPart(Rect[] parts, double centerX, double centerY, int skip, double offsetY) {
+        double minDist = 10000.0;
+        int partIndex = -1;
+        for (int j = 0; j < parts.length; j++) {
+            double partX = (double)parts[j].x + (double)parts[j].width*0.5;
+            double partY = (double)parts[j].y + (double)parts[j].height*0.5 + offsetY;
+            double dist = calcDistance(centerX, centerY, partX, partY);
+            if (dist < minDist && j != skip) {
+                minDist = dist;
+                partIndex = j;
+            }
+        }
+        return partIndex;
+    }
+
+    private static String getLandmarksJSON(Mat faceGray, MatOfPoint2f lm, int frameRotation) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(",\"landmarks\":[");
+        for (int j = 0; j < lm.rows(); j++) {
+            double[] dp = lm.get(j, 0);
+            Point newPt = rotatePoint(faceGray, new Point(dp[0], dp[1]), frameRotation);
+            sb.append("{\"x\":" + newPt.x + ",\"y\":" + newPt.y + "}");
+            if (j != lm.rows() - 1) {
+                sb.append(",");
+            }
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+
+    private static String getPartJSON(Mat dFace, String partKey, Rect part, int frameRotation) {
+
+        StringBuilder sb = new StringBuilder();
+        if (partKey != null) {
+            sb.append(",\"" + partKey + "\":");
+        }
+
+        double widthToUse = dFace.cols();
+        double heightToUse = dFace.rows();
+
+        double X0 = part.tl().x;
+        double Y0 = part.tl().y;
+        double X1 = part.br().x;
+        double Y1 = part.br().y;
+
+        double x = X0/widthToUse;
+        double y = Y0/heightToUse;
+        double w = (X1 - X0)/widthToUse;
+        double h = (Y1 - Y0)/heightToUse;
+
+        switch(frameRotation) {
+          case Core.ROTATE_90_CLOCKWISE:
+              x = Y0/heightToUse;
+              y = 1.0 - X1/widthToUse;
+              w = (Y1 - Y0)/heightToUse;
+              h = (X1 - X0)/widthToUse;
+              break;
+          case Core.ROTATE_180:
+              x = 1.0 - X1/widthToUse;
+              y = 1.0 - Y1/heightToUse;
+              break;
+          case Core.ROTATE_90_COUNTERCLOCKWISE:
+              x = 1.0 - Y1/heightToUse;
+              y = X0/widthToUse;
+              w = (Y1 - Y0)/heightToUse;
+              h = (X1 - X0)/widthToUse;
+              break;
+          default:
+              break;
+        }
+
+        sb.append("{\"x\":"+x+",\"y\":"+y+",\"width\":"+w+",\"height\":"+h);
+        if (partKey != null) {
+          sb.append("}");
+        }
+        return sb.toString();
+    }
+
+    private static Point rotatePoint(Mat dFace, Point pt, int frameRotation) {
+        double newX, newY;
+        double widthToUse = dFace.cols();
+        double heightToUse = dFace.rows();
+        switch(frameRotation) {
+            case Core.ROTATE_90_CLOCKWISE:
+                newX = pt.y/heightToUse;
+                newY = 1.0 - pt.x/widthToUse;
+                break;
+            case Core.ROTATE_180:
+                newX = 1.0 - pt.x/widthToUse;
+                newY = 1.0 - pt.y/heightToUse;
+                break;
+            case Core.ROTATE_90_COUNTERCLOCKWISE:
+                newX = 1.0 - pt.y/heightToUse;
+                newY = pt.x/widthToUse;
+                break;
+            default:
+                newX = pt.x/widthToUse;
+                newY = pt.y/heightToUse;
+                break;
+        }
+        return new Point(newX, newY);
+    }
+
+    private static double calcDistance(double centerX, double centerY, double pointX, double pointY) {
+        double distX = pointX - centerX;
+        double distY = pointY - centerY;
+
+        distX = (distX < 0.0) ? -distX : distX;
+        distY = (distY < 0.0) ? -distY : distY;
+        return (distX + distY);
+    }
+
+    // {offered, analyzed, dropped} frame counts of the analysis thread
+    public long[] analysisStats() {
+        return processor.stats();
+    }
+
+    // call once the camera no longer delivers frames
+    public void release() {
+        processor.stop();
+        events.shutdown();
+        AsyncVideoWriter writer = videoWriter;
+        videoWriter = null;
+        if (writer != null) {
+            writer.stop(null, null);
+        }
+        TakePicBlock takePicBlock = pendingPicture.getAndSet(null);
+        if (takePicBlock != null) {
+            takePicBlock.promise.reject("EGENERIC", "takePicture: the camera was closed");
+        }
+        if (pipeline != null) {
+            pipeline.releaseScratch();
+            pipeline = null;
+        }
+        // the analysis thread has finished so its state can be released here
+        dropTracker();
+        if (streamer != null) {
+            streamer.release();
+            streamer = null;
+        }
+        equalized.release();
+        rotated.release();
+        synchronized (overlayLock) {
+            if (overlayMat != null) {
+                overlayMat.release();
+                overlayMat = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import org.opencv.objdetect.CascadeClassifier;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ *  Loaded CascadeClassifiers keyed by file path and modification time so repeated detections only
+ *  pay for the detection and not for parsing the cascade xml.  A file that changes on disk gets a
+ *  new key and replaces its stale classifier.  The least recently used classifiers are dropped
+ *  once more than maxEntries are loaded.  A CascadeClassifier is not safe to use from two threads
+ *  at once so callers should synchronize on the instance they get back.
+ */
+class CascadeCache {
+
+    private static final String TAG = CascadeCache.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_ENTRIES = 4;
+
+    private static CascadeCache cascadeCache = null;
+
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    private final LinkedHashMap<String, CascadeClassifier> classifiers =
+        new LinkedHashMap<String, CascadeClassifier>(8, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CascadeClassifier> eldest) {
+                return size() > maxEntries;
+            }
+        };
+
+    private CascadeCache() {
+    }
+
+    // static method to create instance of Singleton class
+    public static synchronized CascadeCache getInstance() {
+        if (cascadeCache == null)
+            cascadeCache = new CascadeCache();
+
+        return cascadeCache;
+    }
+
+    private static String keyFor(File cascadeFile) {
+        return cascadeFile.getAbsolutePath() + "@" + cascadeFile.lastModified();
+    }
+
+    // returns the cached classifier for this file loading it if needed, null if it cannot be loaded
+    public synchronized CascadeClassifier get(File cascadeFile) {
+        if (cascadeFile == null || !cascadeFile.exists()) {
+            return null;
+        }
+        String key = keyFor(cascadeFile);
+        CascadeClassifier classifier = classifiers.get(key);
+        if (classifier != null) {
+            return classifier;
+        }
+
+        evict(cascadeFile.getAbsolutePath());
+        classifier = new CascadeClassifier(cascadeFile.getAbsolutePath());
+        if (classifier.empty()) {
+            Log.e(TAG, "Failed to load classifier from " + cascadeFile.getAbsolutePath());
+            return null;
+        }
+        Log.i(TAG, "Loaded classifier from " + cascadeFile.getAbsolutePath());
+        classifiers.put(key, classifier);
+        return classifier;
+    }
+
+    // drops every cached version of the cascade at this path
+    public synchronized void evict(String cascadePath) {
+        String prefix = new File(cascadePath).getAbsolutePath() + "@";
+        Iterator<String> it = classifiers.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        classifiers.clear();
+    }
+
+    public synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+        Iterator<String> it = classifiers.keySet().iterator();
+        while (classifiers.size() > this.maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+/*
+ *  detectMultiScale with tunable parameters.  With no options the Mat is handed to the classifier
+ *  as is, like before.  Otherwise the image is converted to grayscale, optionally equalized and
+ *  downscaled once and that prepared Mat is what the classifier builds its pyramid from, which
+ *  is far cheaper than scanning a full resolution photo.  Returned rects are mapped back to the
+ *  coordinates of the original Mat.  Prepared Mats are per thread scratch and reused.
+ *
+ *  options: scaleFactor (1.1), minNeighbors (3), minSize and maxSize ({width, height} in original
+ *  pixels), downscale (0 < factor <= 1, default 1), equalizeHist (default true when any option
+ *  is given)
+ */
+class CascadeDetector {
+
+    private static final class Scratch {
+        final Mat gray = new Mat();
+        final Mat small = new Mat();
+        final MatOfRect objects = new MatOfRect();
+    }
+
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private CascadeDetector() {
+    }
+
+    private static final String[] TUNING_KEYS = new String[] {
+        "scaleFactor", "minNeighbors", "minSize", "maxSize", "downscale", "equalizeHist"
+    };
+
+    private static boolean hasTuning(ReadableMap options) {
+        if (options == null) {
+            return false;
+        }
+        for (String key : TUNING_KEYS) {
+            if (options.hasKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Size sizeOption(ReadableMap options, String key, double scale) {
+        if (options == null || !options.hasKey(key) || options.isNull(key)) {
+            return new Size();
+        }
+        ReadableMap size = options.getMap(key);
+        return new Size(size.getDouble("width") * scale, size.getDouble("height") * scale);
+    }
+
+    // the image the classifier runs on, gray (and equalized and scaled) unless no options given
+    private static Mat prepare(Mat in, ReadableMap options, double downscale, Scratch s) {
+        Mat gray;
+        switch (in.channels()) {
+            case 4:
+                Imgproc.cvtColor(in, s.gray, Imgproc.COLOR_RGBA2GRAY);
+                gray = s.gray;
+                break;
+            case 3:
+                Imgproc.cvtColor(in, s.gray, Imgproc.COLOR_RGB2GRAY);
+                gray = s.gray;
+                break;
+            default:
+                gray = in;
+        }
+        Mat prepared = gray;
+        if (downscale < 1.0) {
+            Imgproc.resize(gray, s.small, new Size(), downscale, downscale, Imgproc.INTER_AREA);
+            prepared = s.small;
+        }
+        boolean equalize = !options.hasKey("equalizeHist") || options.getBoolean("equalizeHist");
+        if (equalize) {
+            // equalizing in place is fine for the scratch Mats but must not touch the caller's Mat
+            Mat target = prepared == in ? s.gray : prepared;
+            Imgproc.equalizeHist(prepared, target);
+            prepared = target;
+        }
+        return prepared;
+    }
+
+    public static Rect[] detect(CascadeClassifier classifier, Mat in, ReadableMap options) {
+        Scratch s = scratch.get();
+        if (!hasTuning(options)) {
+            synchronized (classifier) {
+                classifier.detectMultiScale(in, s.objects);
+            }
+            return s.objects.toArray();
+        }
+
+        double downscale = options.hasKey("downscale") ? options.getDouble("downscale") : 1.0;
+        if (downscale <= 0.0 || downscale > 1.0) {
+            throw new IllegalArgumentException("downscale must be greater than 0 and at most 1");
+        }
+        double scaleFactor = options.hasKey("scaleFactor") ? options.getDouble("scaleFactor") : 1.1;
+        int minNeighbors = options.hasKey("minNeighbors") ? options.getInt("minNeighbors") : 3;
+        Size minSize = sizeOption(options, "minSize", downscale);
+        Size maxSize = sizeOption(options, "maxSize", downscale);
+
+        Mat prepared = prepare(in, options, downscale, s);
+        synchronized (classifier) {
+            classifier.detectMultiScale(prepared, s.objects, scaleFactor, minNeighbors, 0, minSize, maxSize);
+        }
+        Rect[] objectsArray = s.objects.toArray();
+        if (downscale < 1.0) {
+            for (Rect rect : objectsArray) {
+                rect.x = (int)Math.round(rect.x / downscale);
+                rect.y = (int)Math.round(rect.y / downscale);
+                rect.width = (int)Math.round(rect.width / downscale);
+                rect.height = (int)Math.round(rect.height / downscale);
+            }
+        }
+        return objectsArray;
+    }
+}
@@ -24,11 +24,19 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 class CvInvoke {
 
     private static final String TAG = CvInvoke.class.getSimpleName();
 
+    // error results of invokeCvMethod, negative so they can never be mistaken for a Mat handle
+    public static final int SECURITY_EXCEPTION = -1000;
+    public static final int ILLEGAL_ACCESS_EXCEPTION = -1001;
+    public static final int INVOCATION_TARGET_EXCEPTION = -1002;
+    public static final int INVOKE_EXCEPTION = -1003;
+
     // usually the last Mat in the params is used as the return mat except for
 	// these function exceptions in which another Mat besides the dest Mat follows it in
 	// the parameter list ... 
@@ -71,6 +79,12 @@ class CvInvoke {
 		retExcs.put("warpPolar",new int[]{1,6}); 
 		retExcs.put("watershed",new int[]{0,2}); 
 	}
+
+	// reflection lookups are cached process wide, per class and function name, see Overloads
+	private static final Class<?>[] searchClasses = new Class<?>[] { Imgproc.class, Core.class, Mat.class };
+	private static final Method[] NO_METHOD = new Method[0];
+	private static final ConcurrentHashMap<Class<?>, Map<String, Overloads>> methodIndexes =
+		new ConcurrentHashMap<Class<?>, Map<String, Overloads>>();
 	
     private int arrMatIndex = -1;
     public int dstMatIndex = -1;
@@ -82,6 +96,9 @@ class CvInvoke {
 
     private HashMap<String, Mat> matParams = new HashMap<String, Mat>();
 
+    // pooled transposes of the frame made for one invokeCvMethod call
+    private final ArrayList<Mat> transients = new ArrayList<Mat>();
+
     public CvInvoke() {
     }
 
@@ -94,7 +111,20 @@ class CvInvoke {
         }
     }
 
-    private static int getNumKeys(ReadableMap RM) {
+    // should be last mat in function parameters unless exception function, the last
+    // Mat parameter for which this returns true is the one copied back to the MatManager
+    static boolean isDstParam(String func, int numMethodParams, int paramIndex) {
+        if (retExcs.containsKey(func)) {
+            int[] testExcs = retExcs.get(func);
+            int minParams = testExcs[1];
+            if (numMethodParams >= minParams) {
+                return testExcs[0] == paramIndex;
+            }
+        }
+        return true;
+    }
+
+    static int getNumKeys(ReadableMap RM) {
         int numKeys = 0;
         ReadableMapKeySetIterator keyIterator = RM.keySetIterator();
         while (keyIterator.hasNextKey()) {
@@ -125,13 +155,13 @@ class CvInvoke {
                    dstMat = rgba;
                }
                else if (paramStr.equals("rgbat")) {
-                   dstMat = rgba.t();
+                   dstMat = transposed(rgba);
                }
                else if (paramStr.equals("gray")) {
                    dstMat = gray;
                }
                else if (paramStr.equals("grayt")) {
-                   dstMat = gray.t();
+                   dstMat = transposed(gray);
                }
                else if (matParams.containsKey(paramStr)) {
                    dstMat = matParams.get(paramStr);
@@ -161,22 +191,7 @@ class CvInvoke {
 				   }
 
                    // have to update the dst mat after op ...
-                   // should be last mat in function parameters unless exception function
-				   if (retExcs.containsKey(func)) {
-					   int[] testExcs = retExcs.get(func);
-					   int minParams = testExcs[1];
-					   if (params.length >= minParams) {
-					       if (testExcs[0] == (i - 1)) {
-					           arrMatIndex = testExcs[0];
-						       dstMatIndex = matIndex;
-					       }
-				   	   }
-					   else {
-						   arrMatIndex = i - 1;
-						   dstMatIndex = matIndex;
-					   }
-				   }
-				   else {
+				   if (isDstParam(func, params.length, i - 1)) {
                        arrMatIndex = i - 1;
                        dstMatIndex = matIndex;
 				   }
@@ -243,29 +258,195 @@ class CvInvoke {
         return retArr;
     }
 
-    private Method findMethod(String func, ReadableMap params, Class searchClass) {
-        Method retMethod = null;
+    // one letter per parameter type so overloads with the same arity can be told apart
+    static String getParamShape(ReadableMap params, int numParams) {
+        if (params == null || numParams == 0) {
+            return "";
+        }
+        char[] shape = new char[numParams];
+        for (int i=0;i < numParams;i++) {
+            String paramNum = "p" + (i + 1);
+            if (!params.hasKey(paramNum)) {
+                shape[i] = '?';
+                continue;
+            }
+            switch (params.getType(paramNum)) {
+                case String:
+                    shape[i] = 'S';
+                    break;
+                case Number:
+                    shape[i] = 'N';
+                    break;
+                case Boolean:
+                    shape[i] = 'B';
+                    break;
+                case Map:
+                    shape[i] = 'M';
+                    break;
+                case Array:
+                    shape[i] = 'A';
+                    break;
+                default:
+                    shape[i] = '0';
+            }
+        }
+        return new String(shape);
+    }
+
+    private static boolean acceptsShape(Class<?> param, char shape) {
+        switch (shape) {
+            case 'S':
+                return param == Mat.class || param == List.class || param == String.class;
+            case 'N':
+                return param == int.class || param == double.class;
+            case 'B':
+                return param == boolean.class;
+            case 'M':
+                return param == Mat.class || param == List.class || param == MatOfInt.class ||
+                    param == MatOfFloat.class || param == Point.class || param == Scalar.class ||
+                    param == Size.class || param == Rect.class;
+            case 'A':
+                return param == List.class;
+            default:
+                return true;
+        }
+    }
+
+    private static boolean matchesShape(Method method, String shape) {
+        Class<?>[] methodParams = method.getParameterTypes();
+        for (int i=0;i < methodParams.length;i++) {
+            if (!acceptsShape(methodParams[i], shape.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the public overloads of one function grouped by arity, the param shape is only looked at
+    // when more than one overload has the arity and the overload it picks is remembered per shape
+    private static final class Overloads {
+        final Method first;
+        final Method[][] byArity;
+        final ConcurrentHashMap<String, Method[]> byShape = new ConcurrentHashMap<String, Method[]>();
+
+        Overloads(List<Method> methods) {
+            first = methods.get(0);
+            int maxParams = 0;
+            for (Method method : methods) {
+                maxParams = Math.max(maxParams, method.getParameterTypes().length);
+            }
+            int[] counts = new int[maxParams + 1];
+            for (Method method : methods) {
+                counts[method.getParameterTypes().length]++;
+            }
+            byArity = new Method[maxParams + 1][];
+            for (int numParams=0;numParams <= maxParams;numParams++) {
+                byArity[numParams] = new Method[counts[numParams]];
+                counts[numParams] = 0;
+            }
+            for (Method method : methods) {
+                int numParams = method.getParameterTypes().length;
+                byArity[numParams][counts[numParams]++] = method;
+            }
+        }
+
+        Method find(int numParams, ReadableMap params) {
+            if (numParams == 0) {
+                return first;
+            }
+            if (numParams >= byArity.length || byArity[numParams].length == 0) {
+                return null;
+            }
+            Method[] candidates = byArity[numParams];
+            if (candidates.length == 1) {
+                return candidates[0];
+            }
+            // shapes of different arities have different lengths so one map serves all of them
+            String shape = getParamShape(params, numParams);
+            Method[] cached = byShape.get(shape);
+            if (cached == null) {
+                Method method = resolve(candidates, shape);
+                cached = method != null ? new Method[] { method } : NO_METHOD;
+                byShape.putIfAbsent(shape, cached);
+            }
+            return cached.length > 0 ? cached[0] : null;
+        }
+
+        // prefer an overload whose parameter types fit the JS values, else the first with the arity
+        private static Method resolve(Method[] candidates, String shape) {
+            for (Method method : candidates) {
+                if (matchesShape(method, shape)) {
+                    return method;
+                }
+            }
+            return candidates[0];
+        }
+    }
+
+    // public methods of each searched class grouped by name, built once per class
+    private static Map<String, Overloads> getMethodIndex(Class<?> searchClass) {
+        Map<String, Overloads> index = methodIndexes.get(searchClass);
+        if (index == null) {
+            HashMap<String, ArrayList<Method>> byName = new HashMap<String, ArrayList<Method>>();
+            for (Method method : searchClass.getDeclaredMethods()) {
+                if (!Modifier.isPublic(method.getModifiers())) {
+                    continue;
+                }
+                ArrayList<Method> overloads = byName.get(method.getName());
+                if (overloads == null) {
+                    overloads = new ArrayList<Method>();
+                    byName.put(method.getName(), overloads);
+                }
+                method.setAccessible(true);
+                overloads.add(method);
+            }
+            HashMap<String, Overloads> newIndex = new HashMap<String, Overloads>();
+            for (Map.Entry<String, ArrayList<Method>> entry : byName.entrySet()) {
+                newIndex.put(entry.getKey(), new Overloads(entry.getValue()));
+            }
+            methodIndexes.putIfAbsent(searchClass, newIndex);
+            index = methodIndexes.get(searchClass);
+        }
+        return index;
+    }
+
+    static Method findMethod(String func, int numParams, ReadableMap params, Class<?> searchClass) {
+        Overloads overloads = getMethodIndex(searchClass).get(func);
+        return overloads != null ? overloads.find(numParams, params) : null;
+    }
+
+    static Method findMethod(String func, ReadableMap params, Class<?> searchClass) {
         int numParams = 0;
         if (params != null) {
             numParams = getNumKeys(params);
         }
-        Method[] methods = searchClass.getDeclaredMethods();
-        for (Method method : methods) {
-            if (method.getName().equals(func)) {
-                if (numParams > 0) {
-                    Class<?>[] methodParams = method.getParameterTypes();
-                    if (numParams == methodParams.length) {
-                        retMethod = method;
-                        break;
-                    }
-                }
-                else {
-                    retMethod = method;
-                    break;
-                }
+        return findMethod(func, numParams, params, searchClass);
+    }
+
+    // builds the method indexes so the first invoke does not pay for the reflection scan
+    public static void prewarm() {
+        for (Class<?> searchClass : searchClasses) {
+            getMethodIndex(searchClass);
+        }
+    }
+
+    // resolves every function of an invoke map (with or without groupids) ahead of time
+    public static void prewarm(ReadableMap cvInvokeMap) {
+        prewarm();
+        ReadableArray ins = cvInvokeMap.getArray("ins");
+        ReadableArray functions = cvInvokeMap.getArray("functions");
+        ReadableArray paramsArr = cvInvokeMap.getArray("paramsArr");
+        for (int i=0;i < functions.size();i++) {
+            String in = ins != null ? ins.getString(i) : null;
+            ReadableMap params = paramsArr != null ? paramsArr.getMap(i) : null;
+            String func = functions.getString(i);
+            if (in != null && !in.equals("")) {
+                findMethod(func, params, Mat.class);
+            }
+            if (findMethod(func, params, Imgproc.class) == null) {
+                findMethod(func, params, Core.class);
             }
         }
-        return retMethod;
     }
 
 	// recursive serialization helper functions ...
@@ -416,9 +597,37 @@ class CvInvoke {
         return ret;
     }
 
+    private Mat transposed(Mat src) {
+        Mat dst = MatPool.getInstance().acquire(src.cols(), src.rows(), src.type());
+        Core.transpose(src, dst);
+        transients.add(dst);
+        return dst;
+    }
+
+    private static boolean sharesData(Mat mat, Mat other) {
+        if (other == null || other.empty() || mat.empty()) {
+            return false;
+        }
+        long start = mat.dataAddr();
+        return other.dataAddr() >= start && other.dataAddr() < start + mat.total() * mat.elemSize();
+    }
+
+    // transposes go back to the pool unless they ended up as the registered dst or the out Mat
+    private void recycleTransients(Mat keep, Mat outMat) {
+        for (Mat transientMat : transients) {
+            if (transientMat == keep || transientMat == outMat || sharesData(transientMat, outMat)) {
+                continue;
+            }
+            MatPool.getInstance().recycle(transientMat);
+        }
+        transients.clear();
+    }
+
     public int invokeCvMethod(String in, String func, ReadableMap params, String out) {
 
         int result = -1;
+        Mat keptMat = null;
+        Mat outMat = null;
         int numParams = 0;
         if (params != null) {
             numParams = getNumKeys(params);
@@ -430,12 +639,12 @@ class CvInvoke {
             if (in != null && !in.equals("") && (in.equals("rgba") || in.equals("rgbat") ||
                 in.equals("gray") || in.equals("grayt") || matParams.containsKey(in)))
             {
-                method = findMethod(func, params, Mat.class);
+                method = findMethod(func, numParams, params, Mat.class);
             }
             else {
-                method = findMethod(func, params, Imgproc.class);
+                method = findMethod(func, numParams, params, Imgproc.class);
                 if (method == null) {
-                    method = findMethod(func, params, Core.class);
+                    method = findMethod(func, numParams, params, Core.class);
                 }
             }
 
@@ -457,13 +666,13 @@ class CvInvoke {
                     matToUse = rgba;
                 }
                 else if (in != null && in.equals("rgbat")) {
-                    matToUse = rgba.t();
+                    matToUse = transposed(rgba);
                 }
                 else if (in != null && in.equals("gray")) {
                     matToUse = gray;
                 }
                 else if (in != null && in.equals("grayt")) {
-                    matToUse = gray.t();
+                    matToUse = transposed(gray);
                 }
                 else if (in != null && matParams.containsKey(in)) {
                     matToUse = matParams.get(in);
@@ -472,6 +681,7 @@ class CvInvoke {
                 if (out != null && !out.equals("")) {
                     Mat matParam = (Mat)method.invoke(matToUse, objects);
                     matParams.put(out, matParam);
+                    outMat = matParam;
                 }
                 else {
                     if (func.equals("release")) {
@@ -487,6 +697,7 @@ class CvInvoke {
 
             if (dstMatIndex >= 0) {
                 Mat dstMat = (Mat)objects[arrMatIndex];
+                keptMat = dstMat;
                 MatManager.getInstance().setMat(dstMatIndex, dstMat);
                 result = dstMatIndex;
                 dstMatIndex = -1;
@@ -494,19 +705,20 @@ class CvInvoke {
             }
         }
         catch (SecurityException SE) {
-            result = 1000;
+            result = SECURITY_EXCEPTION;
         }
         catch (IllegalAccessException IAE) {
-            result = 1001;
+            result = ILLEGAL_ACCESS_EXCEPTION;
         }
         catch (InvocationTargetException ITE) {
-            result = 1002;
+            result = INVOCATION_TARGET_EXCEPTION;
         }
         catch (Exception EXC) {
-            result = 1003;
+            result = INVOKE_EXCEPTION;
             Log.e(TAG, EXC.getMessage());
         }
         finally {
+            recycleTransients(keptMat, outMat);
             return result;
         }
     }
@@ -521,7 +733,7 @@ class CvInvoke {
                 responseArr = new WritableNativeArray();
                 for (int i=invokeGroups.length-1;i >= 0;i--) {
                     dstMatIndex = invokeCvMethods((ReadableMap)invokeGroups[i]);
-                    if (callback != null && !callback.equals("") && dstMatIndex >= 0 && dstMatIndex < 1000) {
+                    if (callback != null && !callback.equals("") && dstMatIndex >= 0) {
                         WritableArray retArr = MatManager.getInstance().getMatData(dstMatIndex, 0, 0);
                         responseArr.pushArray(retArr);
                     }
@@ -530,7 +742,7 @@ class CvInvoke {
         }
         else {
             dstMatIndex = invokeCvMethods(cvInvokeMap);
-            if (callback != null && !callback.equals("") && dstMatIndex >= 0 && dstMatIndex < 1000) {
+            if (callback != null && !callback.equals("") && dstMatIndex >= 0) {
                 responseArr = MatManager.getInstance().getMatData(dstMatIndex, 0, 0);
             }
         }
@@ -0,0 +1,205 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ *  Runs CvInvoke work on a small pool of worker threads so slow Imgproc calls do not hold up the
+ *  react native modules thread.  The queue of waiting requests is bounded per request via the
+ *  maxQueueDepth option, when it is full the new request is rejected or, with dropOldest, the
+ *  oldest waiting request is rejected instead.  Requests submitted with a requestId can be
+ *  cancelled while waiting, a request that is already running finishes but its result is dropped.
+ */
+class CvInvokeExecutor {
+
+    private static final String TAG = CvInvokeExecutor.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_QUEUE_DEPTH = 32;
+
+    interface Work {
+        // returns the value the promise is resolved with
+        Object run() throws Exception;
+    }
+
+    interface Callbacks {
+        // emits the invoke's callback event, see RNOpencv3Module.sendCallbackData
+        void send(WritableArray retArr, String callback, int dstMatIndex);
+    }
+
+    // fills in what an invoke resolves its promise with.  A native array can only be put into one
+    // map, so the payload goes to the callback event when one is sent and into the result otherwise
+    static WritableMap invokeResult(WritableArray retArr, String callback, int dstMatIndex,
+                                    WritableMap result, Callbacks callbacks) throws Exception {
+        if (dstMatIndex <= CvInvoke.SECURITY_EXCEPTION) {
+            throw new Exception("Invoke failed with error " + dstMatIndex + ".  Check your method name and parameters and make sure they are correct.");
+        }
+        result.putInt("matIndex", dstMatIndex);
+        if (callback != null && !callback.equals("") && dstMatIndex >= 0) {
+            callbacks.send(retArr, callback, dstMatIndex);
+        }
+        else if (retArr != null) {
+            result.putArray("payload", retArr);
+        }
+        return result;
+    }
+
+    private static final class Task implements Runnable {
+        final String requestId;
+        final Work work;
+        final Promise promise;
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        Task(String requestId, Work work, Promise promise) {
+            this.requestId = requestId;
+            this.work = work;
+            this.promise = promise;
+        }
+
+        void reject(String code, String message) {
+            if (done.compareAndSet(false, true)) {
+                promise.reject(code, message);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (done.get()) {
+                return;
+            }
+            try {
+                Object result = work.run();
+                if (done.compareAndSet(false, true)) {
+                    promise.resolve(result);
+                }
+            } catch (Throwable ex) {
+                // errors from native code (UnsatisfiedLinkError, OutOfMemoryError) must settle the promise too
+                String message = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+                Log.e(TAG, "Invoke request failed: " + message);
+                reject("EINVOKE", message);
+                if (ex instanceof VirtualMachineError) {
+                    throw (VirtualMachineError)ex;
+                }
+            }
+        }
+    }
+
+    private final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+    private final ThreadPoolExecutor executor;
+    // running tasks by requestId so they can still be cancelled
+    private final ConcurrentHashMap<String, Task> running = new ConcurrentHashMap<String, Task>();
+
+    public CvInvokeExecutor() {
+        int numThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+        final AtomicInteger threadNum = new AtomicInteger(0);
+        executor = new ThreadPoolExecutor(numThreads, numThreads, 30, TimeUnit.SECONDS, queue,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "RNOpencv3-invoke-" + threadNum.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }) {
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                Task task = (Task)r;
+                if (task.requestId != null) {
+                    running.put(task.requestId, task);
+                }
+            }
+
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                Task task = (Task)r;
+                if (task.requestId != null) {
+                    running.remove(task.requestId, task);
+                }
+            }
+        };
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    // options: requestId (string), maxQueueDepth (int), dropOldest (bool), all optional
+    public synchronized void submit(ReadableMap options, Work work, Promise promise) {
+        String requestId = null;
+        int maxQueueDepth = DEFAULT_MAX_QUEUE_DEPTH;
+        boolean dropOldest = false;
+        if (options != null) {
+            if (options.hasKey("requestId") && !options.isNull("requestId")) {
+                requestId = options.getString("requestId");
+            }
+            if (options.hasKey("maxQueueDepth")) {
+                maxQueueDepth = Math.max(1, options.getInt("maxQueueDepth"));
+            }
+            if (options.hasKey("dropOldest")) {
+                dropOldest = options.getBoolean("dropOldest");
+            }
+        }
+
+        Task task = new Task(requestId, work, promise);
+        while (queue.size() >= maxQueueDepth) {
+            if (!dropOldest) {
+                task.reject("EBUSY", "Invoke queue is full (" + maxQueueDepth + " requests waiting).");
+                return;
+            }
+            Task oldest = (Task)queue.poll();
+            if (oldest != null) {
+                oldest.reject("EDROPPED", "Invoke request dropped in favor of a newer one.");
+            }
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            task.reject("ECANCELED", "Invoke executor was shut down.");
+        }
+    }
+
+    // returns true if a waiting or running request with this id was found
+    public boolean cancel(String requestId) {
+        if (requestId == null) {
+            return false;
+        }
+        boolean found = false;
+        Iterator<Runnable> it = queue.iterator();
+        while (it.hasNext()) {
+            Task task = (Task)it.next();
+            if (requestId.equals(task.requestId)) {
+                it.remove();
+                task.reject("ECANCELED", "Invoke request " + requestId + " was cancelled.");
+                found = true;
+            }
+        }
+        Task runningTask = running.get(requestId);
+        if (runningTask != null) {
+            runningTask.reject("ECANCELED", "Invoke request " + requestId + " was cancelled.");
+            found = true;
+        }
+        return found;
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    public void shutdown() {
+        for (Runnable r : queue) {
+            ((Task)r).reject("ECANCELED", "Invoke executor was shut down.");
+        }
+        executor.shutdownNow();
+    }
+}
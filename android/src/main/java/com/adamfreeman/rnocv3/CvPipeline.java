@@ -0,0 +1,429 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableType;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableNativeArray;
+
+import org.opencv.imgproc.Imgproc;
+import org.opencv.core.*;
+
+import android.util.Log;
+
+import java.lang.reflect.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ *  A cvInvokeMap compiled once into an immutable plan so it can be run many times, e.g. once per
+ *  camera frame, without walking ReadableMaps, resolving methods or building argument arrays again.
+ *  Execution order and results are the same as CvInvoke.parseInvokeMap: groups run last to first,
+ *  the functions of a group run back to front and the first function of a group may have a callback.
+ *  Named outs become numbered result slots instead of HashMap entries.
+ */
+class CvPipeline {
+
+    private static final String TAG = CvPipeline.class.getSimpleName();
+
+    private static final ConcurrentHashMap<Integer, CvPipeline> pipelines = new ConcurrentHashMap<Integer, CvPipeline>();
+    private static final AtomicInteger nextPipelineIndex = new AtomicInteger(0);
+
+    // where the value of an argument (or the Mat a method is called on) comes from
+    private static final int ARG_CONST = 0;
+    private static final int ARG_MAT_INDEX = 1;
+    private static final int ARG_RGBA = 2;
+    private static final int ARG_RGBAT = 3;
+    private static final int ARG_GRAY = 4;
+    private static final int ARG_GRAYT = 5;
+    private static final int ARG_SLOT = 6;
+    private static final int ARG_NONE = 7;
+
+    private static final class Arg {
+        final int kind;
+        final Object value;
+        final int index;
+        // a List parameter reuses its one element list, transposed frames reuse their Mat
+        final ArrayList<Object> list;
+        final Mat scratch;
+
+        Arg(int kind, Object value, int index, boolean asList) {
+            this.kind = kind;
+            this.value = value;
+            this.index = index;
+            this.list = asList ? new ArrayList<Object>(Arrays.asList((Object)null)) : null;
+            this.scratch = (kind == ARG_RGBAT || kind == ARG_GRAYT) ? new Mat() : null;
+        }
+    }
+
+    private static final class Step {
+        final String func;
+        final Method method;
+        final Arg target;
+        final Arg[] args;
+        final Object[] objects;
+        final int outSlot;
+        final boolean release;
+        final int dstArg;
+        final int dstMatIndex;
+
+        Step(String func, Method method, Arg target, Arg[] args, int outSlot, boolean release,
+             int dstArg, int dstMatIndex) {
+            this.func = func;
+            this.method = method;
+            this.target = target;
+            this.args = args;
+            this.objects = new Object[args.length];
+            this.outSlot = outSlot;
+            this.release = release;
+            this.dstArg = dstArg;
+            this.dstMatIndex = dstMatIndex;
+        }
+    }
+
+    private static final class Group {
+        // in execution order, the last step is the one that may have a callback
+        final Step[] steps;
+        final String callback;
+
+        Group(Step[] steps, String callback) {
+            this.steps = steps;
+            this.callback = callback;
+        }
+    }
+
+    private final Group[] groups;
+    private final boolean grouped;
+    private final Mat[] slots;
+
+    private String lastCallback = null;
+    private int lastDstMatIndex = -1;
+
+    private CvPipeline(Group[] groups, boolean grouped, int numSlots) {
+        this.groups = groups;
+        this.grouped = grouped;
+        this.slots = new Mat[numSlots];
+    }
+
+    public static int register(CvPipeline pipeline) {
+        int pipelineIndex = nextPipelineIndex.getAndIncrement();
+        pipelines.put(pipelineIndex, pipeline);
+        return pipelineIndex;
+    }
+
+    public static CvPipeline pipelineAtIndex(int pipelineIndex) {
+        return pipelines.get(pipelineIndex);
+    }
+
+    public static void deletePipeline(int pipelineIndex) {
+        CvPipeline pipeline = pipelines.remove(pipelineIndex);
+        if (pipeline != null) {
+            pipeline.releaseScratch();
+        }
+    }
+
+    public static CvPipeline compile(ReadableMap cvInvokeMap) {
+        ReadableArray ins = cvInvokeMap.getArray("ins");
+        ReadableArray functions = cvInvokeMap.getArray("functions");
+        ReadableArray paramsArr = cvInvokeMap.getArray("paramsArr");
+        ReadableArray outs = cvInvokeMap.getArray("outs");
+        ReadableArray callbacks = cvInvokeMap.getArray("callbacks");
+        ReadableArray groupids = cvInvokeMap.hasKey("groupids") ? cvInvokeMap.getArray("groupids") : null;
+        boolean grouped = groupids != null && groupids.size() > 0;
+        if (functions == null || functions.size() == 0) {
+            throw new IllegalArgumentException("An invoke pipeline needs at least one function.");
+        }
+
+        // split into [start, end) ranges of consecutive equal group ids
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        if (grouped) {
+            int i = 0;
+            while (i < groupids.size()) {
+                int start = i;
+                String invokeGroupStr = groupids.getString(i);
+                while (i < groupids.size() && groupids.getString(i).equals(invokeGroupStr)) {
+                    i++;
+                }
+                ranges.add(new int[] { start, i });
+            }
+        }
+        else {
+            ranges.add(new int[] { 0, functions.size() });
+        }
+
+        HashMap<String, Integer> slotNames = new HashMap<String, Integer>();
+        Group[] groups = new Group[ranges.size()];
+        int g = 0;
+        for (int r=ranges.size()-1;r >= 0;r--) {
+            int start = ranges.get(r)[0];
+            int end = ranges.get(r)[1];
+            Step[] steps = new Step[end - start];
+            int s = 0;
+            for (int i=end-1;i >= start;i--) {
+                ReadableMap params = (paramsArr != null && !paramsArr.isNull(i)) ? paramsArr.getMap(i) : null;
+                steps[s++] = compileStep(ins.getString(i), functions.getString(i), params,
+                    outs.getString(i), slotNames);
+            }
+            String callback = callbacks.isNull(start) ? null : callbacks.getString(start);
+            groups[g++] = new Group(steps, callback);
+        }
+        return new CvPipeline(groups, grouped, slotNames.size());
+    }
+
+    private static Arg frameArg(String name, HashMap<String, Integer> slotNames, boolean asList) {
+        if (name == null || name.equals("")) {
+            return null;
+        }
+        if (name.equals("rgba")) {
+            return new Arg(ARG_RGBA, null, -1, asList);
+        }
+        if (name.equals("rgbat")) {
+            return new Arg(ARG_RGBAT, null, -1, asList);
+        }
+        if (name.equals("gray")) {
+            return new Arg(ARG_GRAY, null, -1, asList);
+        }
+        if (name.equals("grayt")) {
+            return new Arg(ARG_GRAYT, null, -1, asList);
+        }
+        if (slotNames.containsKey(name)) {
+            return new Arg(ARG_SLOT, null, slotNames.get(name), asList);
+        }
+        return null;
+    }
+
+    private static Step compileStep(String in, String func, ReadableMap params, String out,
+                                    HashMap<String, Integer> slotNames) {
+        int numParams = params != null ? CvInvoke.getNumKeys(params) : 0;
+
+        Arg target = frameArg(in, slotNames, false);
+        Method method;
+        if (target != null) {
+            method = CvInvoke.findMethod(func, numParams, params, Mat.class);
+        }
+        else {
+            target = new Arg(ARG_NONE, null, -1, false);
+            method = CvInvoke.findMethod(func, numParams, params, Imgproc.class);
+            if (method == null) {
+                method = CvInvoke.findMethod(func, numParams, params, Core.class);
+            }
+        }
+        if (method == null) {
+            throw new IllegalArgumentException(func + " not found make sure method exists and is part of Opencv Imgproc, Core or Mat.");
+        }
+
+        Class<?>[] methodParams = method.getParameterTypes();
+        Arg[] args = new Arg[numParams];
+        int dstArg = -1;
+        int dstMatIndex = -1;
+        for (int i=0;i < numParams;i++) {
+            String paramNum = "p" + (i + 1);
+            Class<?> param = methodParams[i];
+            Arg arg = null;
+            ReadableType itsType = params.getType(paramNum);
+            if (itsType == ReadableType.String) {
+                String paramStr = params.getString(paramNum);
+                if (param == Mat.class || param == List.class) {
+                    arg = frameArg(paramStr, slotNames, param == List.class);
+                }
+                else if (param == String.class) {
+                    arg = new Arg(ARG_CONST, paramStr, -1, false);
+                }
+            }
+            else if (itsType == ReadableType.Map) {
+                ReadableMap dMap = params.getMap(paramNum);
+                if (param == Mat.class || param == List.class) {
+                    int matIndex = dMap.getInt("matIndex");
+                    arg = new Arg(ARG_MAT_INDEX, null, matIndex, param == List.class);
+                    if (param == Mat.class && CvInvoke.isDstParam(func, methodParams.length, i)) {
+                        dstArg = i;
+                        dstMatIndex = matIndex;
+                    }
+                }
+                else if (param == MatOfInt.class || param == MatOfFloat.class) {
+                    arg = new Arg(ARG_MAT_INDEX, null, dMap.getInt("matIndex"), false);
+                }
+                else if (param == Point.class) {
+                    arg = new Arg(ARG_CONST, new Point(dMap.getDouble("x"), dMap.getDouble("y")), -1, false);
+                }
+                else if (param == Scalar.class) {
+                    ReadableArray scalarVal = dMap.getArray("vals");
+                    arg = new Arg(ARG_CONST, new Scalar(scalarVal.getDouble(0),scalarVal.getDouble(1),
+                        scalarVal.getDouble(2),scalarVal.getDouble(3)), -1, false);
+                }
+                else if (param == Size.class) {
+                    arg = new Arg(ARG_CONST, new Size(dMap.getDouble("width"), dMap.getDouble("height")), -1, false);
+                }
+                else if (param == Rect.class) {
+                    arg = new Arg(ARG_CONST, new Rect(dMap.getInt("top"), dMap.getInt("left"),
+                        dMap.getInt("width"), dMap.getInt("height")), -1, false);
+                }
+            }
+            else if (itsType == ReadableType.Number) {
+                if (param == int.class) {
+                    arg = new Arg(ARG_CONST, params.getInt(paramNum), -1, false);
+                }
+                else if (param == double.class) {
+                    arg = new Arg(ARG_CONST, params.getDouble(paramNum), -1, false);
+                }
+            }
+            else if (itsType == ReadableType.Array) {
+                if (param == List.class) {
+                    arg = new Arg(ARG_CONST, params.getArray(paramNum).toArrayList(), -1, false);
+                }
+            }
+            if (arg == null) {
+                throw new IllegalArgumentException("One of the parameters is invalid and " + func + " cannot be invoked.");
+            }
+            args[i] = arg;
+        }
+
+        int outSlot = -1;
+        if (out != null && !out.equals("")) {
+            if (!slotNames.containsKey(out)) {
+                slotNames.put(out, slotNames.size());
+            }
+            outSlot = slotNames.get(out);
+        }
+        boolean release = outSlot < 0 && func.equals("release");
+        return new Step(func, method, target, args, outSlot, release, dstArg, dstMatIndex);
+    }
+
+    private Object resolve(Arg arg, Mat rgba, Mat gray) {
+        Object value;
+        switch (arg.kind) {
+            case ARG_CONST:
+                return arg.value;
+            case ARG_MAT_INDEX:
+                value = MatManager.getInstance().matAtIndex(arg.index);
+                break;
+            case ARG_RGBA:
+                value = rgba;
+                break;
+            case ARG_RGBAT:
+                Core.transpose(rgba, arg.scratch);
+                value = arg.scratch;
+                break;
+            case ARG_GRAY:
+                value = gray;
+                break;
+            case ARG_GRAYT:
+                Core.transpose(gray, arg.scratch);
+                value = arg.scratch;
+                break;
+            case ARG_SLOT:
+                value = slots[arg.index];
+                break;
+            default:
+                return null;
+        }
+        if (value == null) {
+            throw new IllegalStateException("Mat argument is missing or has been deleted.");
+        }
+        if (arg.list != null) {
+            arg.list.set(0, value);
+            return arg.list;
+        }
+        return value;
+    }
+
+    private int runStep(Step step, Mat rgba, Mat gray) {
+        int result = -1;
+        try {
+            Object target = resolve(step.target, rgba, gray);
+            for (int i=0;i < step.args.length;i++) {
+                step.objects[i] = resolve(step.args[i], rgba, gray);
+            }
+            if (step.outSlot >= 0) {
+                slots[step.outSlot] = (Mat)step.method.invoke(target, step.objects);
+            }
+            else if (step.release) {
+                // special case deleting the last Mat
+                ((Mat)target).release();
+                if (step.target.kind == ARG_SLOT) {
+                    slots[step.target.index] = null;
+                }
+            }
+            else {
+                step.method.invoke(target, step.objects);
+            }
+            if (step.dstArg >= 0) {
+                MatManager.getInstance().setMat(step.dstMatIndex, step.objects[step.dstArg]);
+                result = step.dstMatIndex;
+            }
+        }
+        catch (SecurityException SE) {
+            result = CvInvoke.SECURITY_EXCEPTION;
+        }
+        catch (IllegalAccessException IAE) {
+            result = CvInvoke.ILLEGAL_ACCESS_EXCEPTION;
+        }
+        catch (InvocationTargetException ITE) {
+            result = CvInvoke.INVOCATION_TARGET_EXCEPTION;
+        }
+        catch (Exception EXC) {
+            result = CvInvoke.INVOKE_EXCEPTION;
+            Log.e(TAG, step.func + ": " + EXC.getMessage());
+        }
+        finally {
+            Arrays.fill(step.objects, null);
+        }
+        return result;
+    }
+
+    // runs every group against the given frame Mats (null outside of the camera) and returns
+    // the same response array CvInvoke.parseInvokeMap would, lastCallback and lastDstMatIndex
+    // hold the callback and result of the last group run
+    public synchronized WritableArray run(Mat rgba, Mat gray) {
+        WritableArray responseArr = grouped ? new WritableNativeArray() : null;
+        lastCallback = null;
+        lastDstMatIndex = -1;
+        for (Group group : groups) {
+            int dstMatIndex = -1;
+            for (Step step : group.steps) {
+                dstMatIndex = runStep(step, rgba, gray);
+            }
+            lastCallback = group.callback;
+            lastDstMatIndex = dstMatIndex;
+            if (group.callback != null && !group.callback.equals("") && dstMatIndex >= 0) {
+                WritableArray retArr = MatManager.getInstance().getMatData(dstMatIndex, 0, 0);
+                if (grouped) {
+                    responseArr.pushArray(retArr);
+                }
+                else {
+                    responseArr = retArr;
+                }
+            }
+        }
+        Arrays.fill(slots, null);
+        return responseArr;
+    }
+
+    public synchronized String lastCallback() {
+        return lastCallback;
+    }
+
+    public synchronized int lastDstMatIndex() {
+        return lastDstMatIndex;
+    }
+
+    synchronized void releaseScratch() {
+        for (Group group : groups) {
+            for (Step step : group.steps) {
+                if (step.target.scratch != null) {
+                    step.target.scratch.release();
+                }
+                for (Arg arg : step.args) {
+                    if (arg.scratch != null) {
+                        arg.scratch.release();
+                    }
+                }
+            }
+        }
+    }
+}
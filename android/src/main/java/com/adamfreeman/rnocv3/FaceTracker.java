@@ -0,0 +1,324 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ *  Detect then track: the face cascade only runs every detectEvery frames, or sooner when a
+ *  tracked face is lost, and in between each face is followed by matching a small template of it
+ *  inside a padded window around where it was last seen.  Matching a 48 pixel template over a
+ *  window twice the face size costs a fraction of a detectMultiScale pass over the whole frame.
+ *  Every face keeps its id for as long as it is tracked, detections are matched to the tracked
+ *  faces by overlap.  Face.detected is true on the frames the cascade found the face, which is
+ *  when callers should run the eye, nose and mouth cascades, on other frames the feature
+ *  positions from the last detection can be moved along with the face.  A face that stops matching
+ *  is left out from that frame on, the next frame runs a detection which finds it again under
+ *  the same id or drops it.
+ *
+ *  The template is not updated while tracking so it cannot drift off the face, the size of a
+ *  face only changes on detection frames.  Meant to be driven from a single thread, e.g. a
+ *  FrameProcessor.Analyzer.
+ *
+ *  options (all optional):
+ *    detectEvery   - frames between full detections (10)
+ *    minConfidence - template match score (TM_CCOEFF_NORMED) below which a face counts as lost
+ *                    and a detection is run on the next frame (0.6)
+ *    padding       - search window padding as a fraction of the face size (0.5)
+ *    templateSize  - width in pixels templates and search windows are scaled to (48)
+ *    maxMisses     - detections a well tracked face may be missed by before it is dropped (1)
+ *    detect        - CascadeDetector options for the detection passes
+ */
+class FaceTracker {
+
+    public static final class Face {
+        public final int id;
+        public final Rect rect;
+        public final double confidence;
+        public final boolean detected;
+
+        Face(int id, Rect rect, double confidence, boolean detected) {
+            this.id = id;
+            this.rect = rect;
+            this.confidence = confidence;
+            this.detected = detected;
+        }
+    }
+
+    // finds the faces in a gray frame, CascadeDetector unless a test supplies its own
+    interface Detector {
+        Rect[] detect(Mat gray, ReadableMap detectOptions);
+    }
+
+    private static final class Track {
+        final int id;
+        Rect rect;
+        final Mat template = new Mat();
+        double templateScale;
+        double templateContrast;
+        double confidence = 1.0;
+        int misses = 0;
+        boolean detected = true;
+
+        Track(int id) {
+            this.id = id;
+        }
+    }
+
+    private final Detector detector;
+    private final int detectEvery;
+    private final double minConfidence;
+    private final double padding;
+    private final int templateSize;
+    private final int maxMisses;
+    private final ReadableMap detectOptions;
+
+    private final ArrayList<Track> tracks = new ArrayList<Track>();
+    private final Mat gray = new Mat();
+    private final Mat window = new Mat();
+    private final Mat scores = new Mat();
+    private int nextId = 0;
+    private int framesSinceDetect = 0;
+    // true until the first detection and whenever a face stops matching
+    private boolean lost = true;
+
+    private long frames = 0;
+    private long detections = 0;
+
+    public FaceTracker(final CascadeClassifier faceClassifier, ReadableMap options) {
+        this(new Detector() {
+            @Override
+            public Rect[] detect(Mat gray, ReadableMap detectOptions) {
+                return CascadeDetector.detect(faceClassifier, gray, detectOptions);
+            }
+        }, options);
+    }
+
+    FaceTracker(Detector detector, ReadableMap options) {
+        this.detector = detector;
+        int detectEveryOption = 10;
+        double minConfidenceOption = 0.6;
+        double paddingOption = 0.5;
+        int templateSizeOption = 48;
+        int maxMissesOption = 1;
+        ReadableMap detectOption = null;
+        if (options != null) {
+            detectEveryOption = options.hasKey("detectEvery") ? Math.max(1, options.getInt("detectEvery")) : detectEveryOption;
+            minConfidenceOption = options.hasKey("minConfidence") ? options.getDouble("minConfidence") : minConfidenceOption;
+            paddingOption = options.hasKey("padding") ? Math.max(0.0, options.getDouble("padding")) : paddingOption;
+            templateSizeOption = options.hasKey("templateSize") ? Math.max(8, options.getInt("templateSize")) : templateSizeOption;
+            maxMissesOption = options.hasKey("maxMisses") ? Math.max(0, options.getInt("maxMisses")) : maxMissesOption;
+            detectOption = (options.hasKey("detect") && !options.isNull("detect")) ? options.getMap("detect") : null;
+        }
+        this.detectEvery = detectEveryOption;
+        this.minConfidence = minConfidenceOption;
+        this.padding = paddingOption;
+        this.templateSize = templateSizeOption;
+        this.maxMisses = maxMissesOption;
+        this.detectOptions = detectOption;
+    }
+
+    // rgba or gray frame in, the faces in it out
+    public List<Face> update(Mat frame) {
+        Mat in = frame;
+        if (frame.channels() == 4) {
+            Imgproc.cvtColor(frame, gray, Imgproc.COLOR_RGBA2GRAY);
+            in = gray;
+        }
+        else if (frame.channels() == 3) {
+            Imgproc.cvtColor(frame, gray, Imgproc.COLOR_RGB2GRAY);
+            in = gray;
+        }
+
+        frames++;
+        framesSinceDetect++;
+        if (lost || framesSinceDetect >= detectEvery) {
+            detect(in);
+        }
+        else {
+            follow(in);
+        }
+
+        List<Face> faces = new ArrayList<Face>(tracks.size());
+        for (Track track : tracks) {
+            if (track.confidence < minConfidence) {
+                continue;
+            }
+            faces.add(new Face(track.id, track.rect.clone(), track.confidence, track.detected));
+        }
+        return faces;
+    }
+
+    private void detect(Mat in) {
+        framesSinceDetect = 0;
+        lost = false;
+        detections++;
+        Rect[] found = detector.detect(in, detectOptions);
+        Rect frameRect = new Rect(0, 0, in.cols(), in.rows());
+
+        boolean[] claimed = new boolean[tracks.size()];
+        ArrayList<Track> matched = new ArrayList<Track>(found.length);
+        for (Rect rect : found) {
+            rect = intersect(rect, frameRect);
+            if (rect.width <= 0 || rect.height <= 0) {
+                continue;
+            }
+            // the tracked face it overlaps most keeps its id
+            int best = -1;
+            double bestOverlap = 0.3;
+            for (int i=0;i < tracks.size();i++) {
+                if (claimed[i]) {
+                    continue;
+                }
+                double overlap = overlap(rect, tracks.get(i).rect);
+                if (overlap > bestOverlap) {
+                    bestOverlap = overlap;
+                    best = i;
+                }
+            }
+            Track track;
+            if (best >= 0) {
+                claimed[best] = true;
+                track = tracks.get(best);
+            }
+            else {
+                track = new Track(nextId++);
+            }
+            track.rect = rect;
+            track.confidence = 1.0;
+            track.misses = 0;
+            track.detected = true;
+            takeTemplate(in, track);
+            matched.add(track);
+        }
+
+        // cascades miss faces now and then, keep a face that still matches well for a few detections
+        for (int i=0;i < tracks.size();i++) {
+            if (claimed[i]) {
+                continue;
+            }
+            Track track = tracks.get(i);
+            track.misses++;
+            track.detected = false;
+            if (track.misses <= maxMisses && match(in, track) >= minConfidence) {
+                matched.add(track);
+            }
+            else {
+                track.template.release();
+            }
+        }
+        tracks.clear();
+        tracks.addAll(matched);
+    }
+
+    private void follow(Mat in) {
+        for (Track track : tracks) {
+            track.detected = false;
+            if (match(in, track) < minConfidence) {
+                lost = true;
+            }
+        }
+    }
+
+    private void takeTemplate(Mat in, Track track) {
+        track.templateScale = Math.min(1.0, (double)templateSize / track.rect.width);
+        Mat face = in.submat(track.rect);
+        if (track.templateScale < 1.0) {
+            Imgproc.resize(face, track.template, new Size(), track.templateScale, track.templateScale, Imgproc.INTER_AREA);
+        }
+        else {
+            face.copyTo(track.template);
+        }
+        face.release();
+        track.templateContrast = contrast(track.template);
+    }
+
+    // moves the track to the best match inside its padded window, returns and records the score
+    private double match(Mat in, Track track) {
+        int pad = (int)Math.round(padding * Math.max(track.rect.width, track.rect.height));
+        Rect search = intersect(new Rect(track.rect.x - pad, track.rect.y - pad,
+            track.rect.width + 2*pad, track.rect.height + 2*pad), new Rect(0, 0, in.cols(), in.rows()));
+        Size searchSize = new Size(Math.round(search.width * track.templateScale), Math.round(search.height * track.templateScale));
+        if (searchSize.width < track.template.cols() || searchSize.height < track.template.rows()) {
+            // the face has moved out of the frame
+            track.confidence = 0.0;
+            return 0.0;
+        }
+
+        Mat region = in.submat(search);
+        Imgproc.resize(region, window, searchSize, 0, 0, Imgproc.INTER_AREA);
+        region.release();
+        // normalized matching scores a flat window as a perfect match, a face does not turn flat
+        if (contrast(window) < 0.25 * track.templateContrast) {
+            track.confidence = 0.0;
+            return 0.0;
+        }
+        Imgproc.matchTemplate(window, track.template, scores, Imgproc.TM_CCOEFF_NORMED);
+        Core.MinMaxLocResult best = Core.minMaxLoc(scores);
+
+        track.confidence = best.maxVal;
+        if (best.maxVal >= minConfidence) {
+            track.rect = intersect(new Rect((int)Math.round(search.x + best.maxLoc.x / track.templateScale),
+                (int)Math.round(search.y + best.maxLoc.y / track.templateScale), track.rect.width, track.rect.height),
+                new Rect(0, 0, in.cols(), in.rows()));
+        }
+        return best.maxVal;
+    }
+
+    private static double contrast(Mat mat) {
+        MatOfDouble mean = new MatOfDouble();
+        MatOfDouble stddev = new MatOfDouble();
+        Core.meanStdDev(mat, mean, stddev);
+        double contrast = stddev.toArray()[0];
+        mean.release();
+        stddev.release();
+        return contrast;
+    }
+
+    private static Rect intersect(Rect a, Rect b) {
+        int x0 = Math.max(a.x, b.x);
+        int y0 = Math.max(a.y, b.y);
+        int x1 = Math.min(a.x + a.width, b.x + b.width);
+        int y1 = Math.min(a.y + a.height, b.y + b.height);
+        return new Rect(x0, y0, Math.max(0, x1 - x0), Math.max(0, y1 - y0));
+    }
+
+    // intersection over union
+    private static double overlap(Rect a, Rect b) {
+        Rect common = intersect(a, b);
+        double shared = (double)common.width * common.height;
+        double union = (double)a.width * a.height + (double)b.width * b.height - shared;
+        return union > 0 ? shared / union : 0.0;
+    }
+
+    // forget every face, the next frame runs a detection
+    public void reset() {
+        for (Track track : tracks) {
+            track.template.release();
+        }
+        tracks.clear();
+        lost = true;
+    }
+
+    // {frames, detections} so callers can see how often the cascade actually ran
+    public long[] stats() {
+        return new long[] { frames, detections };
+    }
+
+    public void release() {
+        reset();
+        gray.release();
+        window.release();
+        scores.release();
+    }
+}
@@ -2,22 +2,33 @@
 package com.adamfreeman.rnocv3;
 
 import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableNativeMap;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
 
 import org.opencv.android.Utils;
+import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
 
 import android.media.ExifInterface;
-import android.graphics.Matrix;
+import android.util.Base64;
 import android.util.Log;
 
 
@@ -27,6 +38,20 @@ class FileUtils {
 
     private static FileUtils fileUtils = null;
 
+    // per thread encode output, the MatOfByte keeps its native buffer while encoded sizes stay the
+    // same and bytes only grows so steady state encodes do not allocate apart from the base64 string
+    private static final class EncodeScratch {
+        final MatOfByte encoded = new MatOfByte();
+        byte[] bytes = new byte[0];
+    }
+
+    private static final ThreadLocal<EncodeScratch> encodeScratch = new ThreadLocal<EncodeScratch>() {
+        @Override
+        protected EncodeScratch initialValue() {
+            return new EncodeScratch();
+        }
+    };
+
     private FileUtils() {
     }
 
@@ -59,71 +84,438 @@ class FileUtils {
         promise.reject("EINVAL", "EINVAL: invalid parameter, read '" + param + "'");
     }
 
-    public static void imageToMat(final String inPath, final Promise promise) {
+    // rejects and returns false unless inPath is an existing file
+    private static boolean checkInPath(final String inPath, final Promise promise) {
+        if (inPath == null || inPath.length() == 0) {
+            rejectInvalidParam(promise, inPath);
+            return false;
+        }
+
+        File inFileTest = new File(inPath);
+        if (!inFileTest.exists()) {
+            rejectFileNotFound(promise, inPath);
+            return false;
+        }
+        if (inFileTest.isDirectory()) {
+            rejectFileIsDirectory(promise, inPath);
+            return false;
+        }
+        return true;
+    }
+
+    // largest power of two sample size that keeps the longer side at or above maxDimension
+    private static int sampleSizeFor(int width, int height, int maxDimension) {
+        int sampleSize = 1;
+        if (maxDimension > 0) {
+            int longSide = Math.max(width, height);
+            while (longSide / (sampleSize * 2) >= maxDimension) {
+                sampleSize *= 2;
+            }
+        }
+        return sampleSize;
+    }
+
+    private static Bitmap decodeBitmap(String inPath, ReadableMap options) throws IOException {
+        int maxDimension = 0;
+        ReadableMap region = null;
+        if (options != null) {
+            maxDimension = options.hasKey("maxDimension") ? options.getInt("maxDimension") : 0;
+            region = (options.hasKey("region") && !options.isNull("region")) ? options.getMap("region") : null;
+        }
+
+        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+
+        if (region != null) {
+            BitmapRegionDecoder regionDecoder = BitmapRegionDecoder.newInstance(inPath, false);
+            try {
+                int x = region.getInt("x");
+                int y = region.getInt("y");
+                Rect rect = new Rect(x, y, x + region.getInt("width"), y + region.getInt("height"));
+                if (!rect.intersect(0, 0, regionDecoder.getWidth(), regionDecoder.getHeight())) {
+                    throw new IOException("Region is outside of the image: " + inPath);
+                }
+                decodeOptions.inSampleSize = sampleSizeFor(rect.width(), rect.height(), maxDimension);
+                return regionDecoder.decodeRegion(rect, decodeOptions);
+            } finally {
+                regionDecoder.recycle();
+            }
+        }
+
+        decodeOptions.inSampleSize = fileSampleSize(inPath, maxDimension);
+        return BitmapFactory.decodeFile(inPath, decodeOptions);
+    }
+
+    private static int fileSampleSize(String inPath, int maxDimension) {
+        if (maxDimension <= 0) {
+            return 1;
+        }
+        BitmapFactory.Options boundsOptions = new BitmapFactory.Options();
+        boundsOptions.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(inPath, boundsOptions);
+        return sampleSizeFor(boundsOptions.outWidth, boundsOptions.outHeight, maxDimension);
+    }
+
+    // whole image grayscale goes straight to CV_8UC1 through Imgcodecs, which can also subsample
+    // JPEGs while decoding, so no RGBA Bitmap or Mat is ever allocated.  Regions still need the
+    // Bitmap region decoder.
+    private static Mat decodeMat(String inPath, ReadableMap options) throws IOException {
+        int maxDimension = (options != null && options.hasKey("maxDimension")) ? options.getInt("maxDimension") : 0;
+        boolean hasRegion = options != null && options.hasKey("region") && !options.isNull("region");
+        if (boolOption(options, "grayscale") && !hasRegion) {
+            return ImageCodecs.readGray(inPath, fileSampleSize(inPath, maxDimension));
+        }
+
+        Bitmap bitmap = decodeBitmap(inPath, options);
+        if (bitmap == null) {
+            throw new IOException("Decoding error unable to decode: " + inPath);
+        }
+        Mat img = new Mat(bitmap.getHeight(), bitmap.getWidth(), CvType.CV_8UC4);
+        Utils.bitmapToMat(bitmap, img);
+        bitmap.recycle();
+        if (boolOption(options, "grayscale")) {
+            Imgproc.cvtColor(img, img, Imgproc.COLOR_RGBA2GRAY);
+        }
+        return img;
+    }
+
+    /*
+     *  Decodes an image file into a new Mat, RGBA by default.  options (all optional):
+     *    maxDimension - longest side of the result, decoding is subsampled so the full resolution
+     *                   image is never allocated
+     *    region       - {x, y, width, height} of the stored (not EXIF rotated) image to decode
+     *    grayscale    - return a single channel CV_8UC1 Mat
+     */
+    public static Mat decodeImage(final String inPath, ReadableMap options) throws IOException {
+        Mat img = decodeMat(inPath, options);
+
+        int maxDimension = (options != null && options.hasKey("maxDimension")) ? options.getInt("maxDimension") : 0;
+        // the sample size only gets within a factor of two, resize the rest of the way
+        int longSide = Math.max(img.cols(), img.rows());
+        if (maxDimension > 0 && longSide > maxDimension) {
+            double scale = (double)maxDimension / longSide;
+            Mat resized = new Mat();
+            Imgproc.resize(img, resized, new Size(), scale, scale, Imgproc.INTER_AREA);
+            img.release();
+            img = resized;
+        }
+
+        // orienting last means the smallest possible Mat gets rotated
+        ExifInterface exif = new ExifInterface(inPath);
+        int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
+        return applyOrientation(img, orientation);
+    }
+
+    // maps the 8 EXIF orientations onto flips, which work in place, or a single rotate/transpose
+    // into a new Mat, in which case img is released and the new Mat returned
+    public static Mat applyOrientation(Mat img, int orientation) {
+        Mat oriented = null;
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                Core.flip(img, img, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                Core.flip(img, img, -1);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                Core.flip(img, img, 0);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                oriented = new Mat();
+                Core.transpose(img, oriented);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                oriented = new Mat();
+                Core.rotate(img, oriented, Core.ROTATE_90_CLOCKWISE);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                oriented = new Mat();
+                Core.transpose(img, oriented);
+                Core.flip(oriented, oriented, -1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                oriented = new Mat();
+                Core.rotate(img, oriented, Core.ROTATE_90_COUNTERCLOCKWISE);
+                break;
+            default:
+                break;
+        }
+        if (oriented == null) {
+            return img;
+        }
+        img.release();
+        return oriented;
+    }
+
+    private static boolean boolOption(ReadableMap options, String key) {
+        return options != null && options.hasKey(key) && options.getBoolean(key);
+    }
+
+    private static int exifOrientation(String inPath) {
+        try {
+            ExifInterface exif = new ExifInterface(inPath);
+            return exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
+        } catch (IOException ex) {
+            return ExifInterface.ORIENTATION_UNDEFINED;
+        }
+    }
+
+    // android.media.ExifInterface only reads streams from API 24 on, the androidx one always can
+    private static int exifOrientation(byte[] data) {
+        try {
+            androidx.exifinterface.media.ExifInterface exif =
+                new androidx.exifinterface.media.ExifInterface(new ByteArrayInputStream(data));
+            return exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
+        } catch (IOException ex) {
+            return ExifInterface.ORIENTATION_UNDEFINED;
+        }
+    }
+
+    private static void resolveMat(Mat img, final Promise promise) {
+        int matIndex = MatManager.getInstance().addMat(img, "image");
+
+        WritableNativeMap result = new WritableNativeMap();
+        result.putInt("cols", img.cols());
+        result.putInt("rows", img.rows());
+        result.putInt("CvType", img.type());
+        result.putInt("matIndex", matIndex);
+        promise.resolve(result);
+    }
+
+    // Imgcodecs engine, options: grayscale, keepBgr (leave the channels in OpenCV's BGR(A) order)
+    public static Mat readImageNative(final String inPath, ReadableMap options) throws IOException {
+        Mat img = ImageCodecs.read(inPath, boolOption(options, "grayscale"), boolOption(options, "keepBgr"));
+        return applyOrientation(img, exifOrientation(inPath));
+    }
+
+    // encoded image bytes through the Imgcodecs engine, oriented like readImageNative orients files
+    public static Mat decodeImageData(byte[] data, ReadableMap options) throws IOException {
+        Mat img = ImageCodecs.decode(data, boolOption(options, "grayscale"), boolOption(options, "keepBgr"));
+        return applyOrientation(img, exifOrientation(data));
+    }
+
+    // decodes with the Imgcodecs engine when options has native set, otherwise the Bitmap engine
+    public static Mat readImage(final String inPath, ReadableMap options) throws IOException {
+        File inFile = new File(inPath);
+        if (!inFile.exists()) {
+            throw new FileNotFoundException("ENOENT: no such file or directory, open '" + inPath + "'");
+        }
+        if (inFile.isDirectory()) {
+            throw new IOException("EISDIR: illegal operation on a directory, open '" + inPath + "'");
+        }
+        return boolOption(options, "native") ? readImageNative(inPath, options) : decodeImage(inPath, options);
+    }
+
+    public static void imreadToMat(final String inPath, final ReadableMap options, final Promise promise) {
         try {
-            if (inPath == null || inPath.length() == 0) {
-                rejectInvalidParam(promise, inPath);
+            if (!checkInPath(inPath, promise)) {
                 return;
             }
+            resolveMat(readImageNative(inPath, options), promise);
+        } catch (Exception ex) {
+            reject(promise, "EGENERIC", ex);
+        }
+    }
 
-            File inFileTest = new File(inPath);
-            if (!inFileTest.exists()) {
-                rejectFileNotFound(promise, inPath);
+    public static void imdecodeToMat(final String base64Data, final ReadableMap options, final Promise promise) {
+        try {
+            if (base64Data == null || base64Data.length() == 0) {
+                rejectInvalidParam(promise, "data");
                 return;
             }
-            if (inFileTest.isDirectory()) {
-                rejectFileIsDirectory(promise, inPath);
+            byte[] data = Base64.decode(base64Data, Base64.DEFAULT);
+            resolveMat(decodeImageData(data, options), promise);
+        } catch (Exception ex) {
+            reject(promise, "EGENERIC", ex);
+        }
+    }
+
+    private static String fileExtension(String path) {
+        int i = path != null ? path.lastIndexOf('.') : -1;
+        return i > 0 ? path.substring(i + 1).toLowerCase() : "";
+    }
+
+    /*
+     *  Imgcodecs IMWRITE_* params for the encoder picked by the file extension, null for defaults.
+     *  options (all optional):
+     *    quality        - JPEG or WEBP quality 0-100
+     *    lossless       - lossless WEBP
+     *    pngCompression - zlib level 0-9, lower is faster and bigger
+     *    progressive    - progressive JPEG
+     *    optimize       - optimized JPEG huffman tables
+     *    chromaQuality  - JPEG chroma quality 0-100, lower keeps less color detail (the closest
+     *                     the OpenCV 3.4 encoder gets to choosing the chroma subsampling)
+     */
+    public static MatOfInt encoderParams(String fileType, ReadableMap options) {
+        if (options == null) {
+            return null;
+        }
+        ArrayList<Integer> params = new ArrayList<Integer>();
+        if (fileType.equals("jpg") || fileType.equals("jpeg")) {
+            if (options.hasKey("quality")) {
+                params.add(Imgcodecs.IMWRITE_JPEG_QUALITY);
+                params.add(options.getInt("quality"));
+            }
+            if (boolOption(options, "progressive")) {
+                params.add(Imgcodecs.IMWRITE_JPEG_PROGRESSIVE);
+                params.add(1);
+            }
+            if (boolOption(options, "optimize")) {
+                params.add(Imgcodecs.IMWRITE_JPEG_OPTIMIZE);
+                params.add(1);
+            }
+            if (options.hasKey("chromaQuality")) {
+                params.add(Imgcodecs.IMWRITE_JPEG_CHROMA_QUALITY);
+                params.add(options.getInt("chromaQuality"));
+            }
+        } else if (fileType.equals("png")) {
+            if (options.hasKey("pngCompression")) {
+                params.add(Imgcodecs.IMWRITE_PNG_COMPRESSION);
+                params.add(options.getInt("pngCompression"));
+            }
+        } else if (fileType.equals("webp")) {
+            // the OpenCV webp encoder switches to lossless for qualities above 100
+            if (boolOption(options, "lossless")) {
+                params.add(Imgcodecs.IMWRITE_WEBP_QUALITY);
+                params.add(101);
+            } else if (options.hasKey("quality")) {
+                params.add(Imgcodecs.IMWRITE_WEBP_QUALITY);
+                params.add(options.getInt("quality"));
+            }
+        }
+        if (params.isEmpty()) {
+            return null;
+        }
+        MatOfInt matOfParams = new MatOfInt();
+        matOfParams.fromList(params);
+        return matOfParams;
+    }
+
+    // returns the size of the written file in bytes
+    public static long writeImageNative(final Mat mat, final String outPath, final ReadableMap options) throws IOException {
+        String fileType = fileExtension(outPath);
+        if (fileType.length() == 0) {
+            throw new IOException("Unknown image type for " + outPath);
+        }
+        MatOfInt params = encoderParams(fileType, options);
+        try {
+            ImageCodecs.write(mat, outPath, params, boolOption(options, "keepBgr"));
+        } finally {
+            if (params != null) {
+                params.release();
+            }
+        }
+        return new File(outPath).length();
+    }
+
+    // writes any depth and channel count the format supports, e.g. 16 bit PNG, WEBP or TIFF,
+    // with the encoder options of encoderParams, the result includes the encoded size in bytes
+    public static void matToImageNative(final Mat mat, final String outPath, final ReadableMap options, final Promise promise) {
+        try {
+            if (fileExtension(outPath).length() == 0) {
+                rejectInvalidParam(promise, outPath);
                 return;
             }
+            long size = writeImageNative(mat, outPath, options);
+
+            WritableNativeMap result = new WritableNativeMap();
+            result.putInt("width", mat.cols());
+            result.putInt("height", mat.rows());
+            result.putString("uri", outPath);
+            result.putDouble("size", size);
+            promise.resolve(result);
+        } catch (Exception ex) {
+            reject(promise, "EGENERIC", ex);
+        }
+    }
 
-            Bitmap bitmap = BitmapFactory.decodeFile(inPath);
-            if (bitmap == null) {
-                throw new IOException("Decoding error unable to decode: " + inPath);
+    // encodes mat in memory as format (png, jpg, webp, ...) with the encoder options of encoderParams
+    public static String encodeToBase64(final Mat mat, final String format, final ReadableMap options) throws IOException {
+        String fileType = format.startsWith(".") ? format.substring(1).toLowerCase() : format.toLowerCase();
+        EncodeScratch s = encodeScratch.get();
+        MatOfInt params = encoderParams(fileType, options);
+        try {
+            ImageCodecs.encode(mat, "." + fileType, params, boolOption(options, "keepBgr"), s.encoded);
+        } finally {
+            if (params != null) {
+                params.release();
             }
+        }
+        int size = (int)s.encoded.total();
+        if (s.bytes.length < size) {
+            s.bytes = new byte[Math.max(size, s.bytes.length * 3 / 2)];
+        }
+        s.encoded.get(0, 0, s.bytes);
+        return Base64.encodeToString(s.bytes, 0, size, Base64.NO_WRAP);
+    }
 
-            ExifInterface exif = new ExifInterface(inPath);
-            int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_UNDEFINED);
-            if (orientation != 1) {
-
-                Matrix matrix = new Matrix();
-                switch (orientation) {
-                    case 2:
-                        matrix.setScale(-1, 1);
-                        break;
-                    case 3:
-                        matrix.postRotate(180);
-                        break;
-                    case 4:
-                        matrix.postRotate(180);
-                        matrix.postScale(-1, 1);
-                        break;
-                    case 5:
-                        matrix.postRotate(90);
-                        matrix.postScale(-1, 1);
-                        break;
-                    case 6:
-                        matrix.postRotate(90);
-                        break;
-                    case 7:
-                        matrix.postRotate(-90);
-                        matrix.postScale(-1, 1);
-                        break;
-                    case 8:
-                        matrix.postRotate(-90);
-                        break;
-                    default:
-                        break;
-                }
+    public static void matToBase64(final Mat mat, final String format, final ReadableMap options, final Promise promise) {
+        try {
+            if (format == null || format.length() == 0) {
+                rejectInvalidParam(promise, format);
+                return;
+            }
+            if (mat == null) {
+                rejectInvalidParam(promise, "mat");
+                return;
+            }
+            String data = encodeToBase64(mat, format, options);
 
+            WritableNativeMap result = new WritableNativeMap();
+            result.putInt("width", mat.cols());
+            result.putInt("height", mat.rows());
+            result.putDouble("size", encodeScratch.get().encoded.total());
+            result.putString("data", data);
+            promise.resolve(result);
+        } catch (Exception ex) {
+            reject(promise, "EGENERIC", ex);
+        }
+    }
 
-                bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
-                        bitmap.getHeight(), matrix, true);
+    // raw lossless Mat files, see MatFiles for the format
+    public static void saveMat(final Mat mat, final String outPath, final Promise promise) {
+        try {
+            if (outPath == null || outPath.length() == 0) {
+                rejectInvalidParam(promise, outPath);
+                return;
             }
+            if (mat == null) {
+                rejectInvalidParam(promise, "mat");
+                return;
+            }
+            long size = MatFiles.save(mat, outPath);
 
+            WritableNativeMap result = new WritableNativeMap();
+            result.putString("uri", outPath);
+            result.putDouble("size", size);
+            promise.resolve(result);
+        } catch (Exception ex) {
+            reject(promise, "EGENERIC", ex);
+        }
+    }
 
-            Mat img = new Mat(bitmap.getHeight(), bitmap.getWidth(), CvType.CV_8UC4);
-            Utils.bitmapToMat(bitmap, img);
-            int matIndex = MatManager.getInstance().addMat(img);
+    public static void loadMat(final String inPath, final Promise promise) {
+        try {
+            if (!checkInPath(inPath, promise)) {
+                return;
+            }
+            resolveMat(MatFiles.load(inPath), promise);
+        } catch (Exception ex) {
+            reject(promise, "EGENERIC", ex);
+        }
+    }
+
+    public static void imageToMat(final String inPath, final Promise promise) {
+        imageToMat(inPath, null, promise);
+    }
+
+    public static void imageToMat(final String inPath, final ReadableMap options, final Promise promise) {
+        try {
+            if (!checkInPath(inPath, promise)) {
+                return;
+            }
+
+            Mat img = decodeImage(inPath, options);
+            int matIndex = MatManager.getInstance().addMat(img, "image");
 
             WritableNativeMap result = new WritableNativeMap();
             result.putInt("cols", img.cols());
@@ -135,6 +527,17 @@ class FileUtils {
         }
     }
 
+    // with options the image is written through Imgcodecs so the encoder options of encoderParams
+    // and any extension OpenCV can encode (e.g. webp) can be used, without it's the Bitmap path
+    public static void matToImage(final Mat mat, final String outPath, final ReadableMap options, final Promise promise) {
+        if (options == null) {
+            matToImage(mat, outPath, promise);
+        }
+        else {
+            matToImageNative(mat, outPath, options, promise);
+        }
+    }
+
     public static void matToImage(final Mat mat, final String outPath, final Promise promise) {
         try {
             if (outPath == null || outPath.length() == 0) {
@@ -181,6 +584,7 @@ class FileUtils {
             result.putInt("width", width);
             result.putInt("height", height);
             result.putString("uri", outPath);
+            result.putDouble("size", new File(outPath).length());
             promise.resolve(result);
         } catch (Exception ex) {
             reject(promise, "EGENERIC", ex);
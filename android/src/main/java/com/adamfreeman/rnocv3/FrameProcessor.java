@@ -0,0 +1,184 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import org.opencv.core.Mat;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/*
+ *  Moves frame analysis (face detection, CvInvoke groups, ...) off the camera callback thread so
+ *  the preview keeps the sensor rate whatever the analysis costs.  The camera callback only calls
+ *  offer, which copies the frame into a recycled buffer and hands it over, the analyzer then runs
+ *  on its own thread.  The hand over holds one frame: a frame that has not been picked up by the
+ *  time the next one arrives is dropped, so the analyzer always works on the newest frame and its
+ *  results lag the preview by at most one frame.  Three buffers are enough for the callback to
+ *  always have one to fill, so steady state frames do not allocate.
+ *
+ *  The Mats passed to the analyzer are only valid during analyze, copy them to keep them.
+ */
+class FrameProcessor {
+
+    private static final String TAG = FrameProcessor.class.getSimpleName();
+
+    private static final int NUM_FRAMES = 3;
+
+    interface Analyzer {
+        // runs on the analysis thread, gray is null when offer was not given one
+        void analyze(Mat rgba, Mat gray, long timestampNanos);
+    }
+
+    private static final class Frame {
+        final Mat rgba = new Mat();
+        final Mat gray = new Mat();
+        boolean hasGray;
+        long timestampNanos;
+
+        void release() {
+            rgba.release();
+            gray.release();
+        }
+    }
+
+    private final Analyzer analyzer;
+    private final Object lock = new Object();
+    private final ArrayDeque<Frame> freeFrames = new ArrayDeque<Frame>();
+    // capacity one queue between offer and the analysis thread
+    private Frame pending = null;
+    private boolean running = true;
+    private final Thread worker;
+
+    private long framesOffered = 0;
+    private long framesAnalyzed = 0;
+    private long framesDropped = 0;
+
+    public FrameProcessor(Analyzer analyzer) {
+        this.analyzer = analyzer;
+        for (int i=0;i < NUM_FRAMES;i++) {
+            freeFrames.push(new Frame());
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                analyzeLoop();
+            }
+        }, "RNOpencv3-frames");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // called on the camera thread, copies the frame and returns without waiting for the analyzer,
+    // frames are expected from a single thread
+    public void offer(Mat rgba, Mat gray, long timestampNanos) {
+        Frame frame;
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            framesOffered++;
+            frame = freeFrames.poll();
+            if (frame == null) {
+                // the analyzer holds one buffer so the other is the stale pending frame, reuse it
+                frame = pending;
+                pending = null;
+                framesDropped++;
+            }
+            if (frame == null) {
+                // only happens if offer is called from more than one thread
+                return;
+            }
+        }
+
+        rgba.copyTo(frame.rgba);
+        frame.hasGray = gray != null;
+        if (gray != null) {
+            gray.copyTo(frame.gray);
+        }
+        frame.timestampNanos = timestampNanos;
+
+        synchronized (lock) {
+            if (!running) {
+                frame.release();
+                return;
+            }
+            if (pending != null) {
+                freeFrames.push(pending);
+                framesDropped++;
+            }
+            pending = frame;
+            lock.notifyAll();
+        }
+    }
+
+    private void analyzeLoop() {
+        while (true) {
+            Frame frame;
+            synchronized (lock) {
+                while (running && pending == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+                frame = pending;
+                pending = null;
+            }
+
+            try {
+                analyzer.analyze(frame.rgba, frame.hasGray ? frame.gray : null, frame.timestampNanos);
+            } catch (Exception ex) {
+                Log.e(TAG, "Frame analysis failed: " + ex.getMessage());
+            }
+
+            synchronized (lock) {
+                framesAnalyzed++;
+                if (running) {
+                    freeFrames.push(frame);
+                }
+                else {
+                    frame.release();
+                }
+            }
+        }
+    }
+
+    // {offered, analyzed, dropped} frame counts
+    public long[] stats() {
+        synchronized (lock) {
+            return new long[] { framesOffered, framesAnalyzed, framesDropped };
+        }
+    }
+
+    // stops the analysis thread after the frame it is on, releases the buffers and waits for the
+    // thread so whatever the analyzer holds can be released once stop returns
+    public void stop() {
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            if (pending != null) {
+                pending.release();
+                pending = null;
+            }
+            for (Frame frame : freeFrames) {
+                frame.release();
+            }
+            freeFrames.clear();
+            lock.notifyAll();
+        }
+        if (Thread.currentThread() != worker) {
+            try {
+                worker.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import android.graphics.Bitmap;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ *  Streams camera frames to JS as onCameraFrame events at a bounded rate and size.  Frames are
+ *  downscaled first and frames arriving faster than the target fps, or while the previous frame
+ *  is still being sent, are dropped and counted.  The Bitmap, the output stream and the scaled
+ *  Mat are reused from frame to frame.
+ *
+ *  options (all optional):
+ *    scale   - downscale factor 0 < scale <= 1 (0.5)
+ *    fps     - target frames per second, 0 for every frame (15)
+ *    format  - 'jpeg' base64 JPEG in payload like before, 'raw' base64 of the raw Mat bytes
+ *              (see MatBuffers) or 'shared' which writes the raw frame into a memory mapped file
+ *              in the MatFiles format and only sends its uri ('jpeg')
+ *    quality - JPEG quality (60)
+ *    path    - base path for the 'shared' format, frames alternate between path.0 and path.1
+ *
+ *  Every event has width, height, CvType, seq and dropped (frames dropped since the last event),
+ *  shared frames also have uri and slot.  A shared frame stays untouched until the frame after the
+ *  next one is sent, the seq written before and after its data (see MatFiles) lets readers that
+ *  take longer than that detect a torn frame, MatFiles.load throws for one.
+ */
+class FrameStreamer {
+
+    private static final String TAG = FrameStreamer.class.getSimpleName();
+
+    public static final String FORMAT_JPEG = "jpeg";
+    public static final String FORMAT_RAW = "raw";
+    public static final String FORMAT_SHARED = "shared";
+
+    // exposes the internal buffer so base64 can be taken without a copy
+    private static final class FrameStream extends ByteArrayOutputStream {
+        FrameStream() {
+            super(64 * 1024);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    private final CameraEventCoalescer.Sink sink;
+    private final double scale;
+    private final long minFrameNanos;
+    private final String format;
+    private final int quality;
+    private final String sharedPath;
+
+    private final Mat scaled = new Mat();
+    private final FrameStream stream = new FrameStream();
+    private Bitmap bitmap = null;
+    private final RandomAccessFile[] sharedFiles = new RandomAccessFile[2];
+    private final MappedByteBuffer[] shared = new MappedByteBuffer[2];
+    private int nextSlot = 0;
+
+    private final Object busy = new Object();
+    private boolean sending = false;
+    private long lastFrameNanos = 0;
+    private long seq = 0;
+    private long droppedSinceLast = 0;
+    private long totalDropped = 0;
+
+    public FrameStreamer(CameraEventCoalescer.Sink sink, ReadableMap options) {
+        this.sink = sink;
+        double scaleOption = 0.5;
+        double fps = 15;
+        String formatOption = FORMAT_JPEG;
+        int qualityOption = 60;
+        String pathOption = null;
+        if (options != null) {
+            scaleOption = options.hasKey("scale") ? options.getDouble("scale") : scaleOption;
+            fps = options.hasKey("fps") ? options.getDouble("fps") : fps;
+            formatOption = options.hasKey("format") ? options.getString("format") : formatOption;
+            qualityOption = options.hasKey("quality") ? options.getInt("quality") : qualityOption;
+            pathOption = (options.hasKey("path") && !options.isNull("path")) ? options.getString("path") : null;
+        }
+        if (scaleOption <= 0.0 || scaleOption > 1.0) {
+            throw new IllegalArgumentException("scale must be greater than 0 and at most 1");
+        }
+        if (!formatOption.equals(FORMAT_JPEG) && !formatOption.equals(FORMAT_RAW) && !formatOption.equals(FORMAT_SHARED)) {
+            throw new IllegalArgumentException("Unknown frame format " + formatOption);
+        }
+        if (formatOption.equals(FORMAT_SHARED) && pathOption == null) {
+            throw new IllegalArgumentException("The shared frame format needs a path");
+        }
+        this.scale = scaleOption;
+        // 10% slack so a 30 fps camera streamed at 10 fps sends every third frame and not every
+        // fourth when its timestamps come in just under the interval
+        this.minFrameNanos = fps > 0 ? (long)(1000000000L / fps * 0.9) : 0;
+        this.format = formatOption;
+        this.quality = qualityOption;
+        this.sharedPath = pathOption;
+    }
+
+    // returns true if the frame was sent, false if it was dropped
+    public boolean offer(Mat rgba, long timestampNanos) {
+        synchronized (busy) {
+            if (sending || (lastFrameNanos != 0 && timestampNanos - lastFrameNanos < minFrameNanos)) {
+                droppedSinceLast++;
+                totalDropped++;
+                return false;
+            }
+            sending = true;
+            lastFrameNanos = timestampNanos;
+        }
+        try {
+            send(rgba);
+            return true;
+        } catch (Exception ex) {
+            Log.e(TAG, "Unable to stream frame: " + ex.getMessage());
+            return false;
+        } finally {
+            synchronized (busy) {
+                sending = false;
+            }
+        }
+    }
+
+    private void send(Mat rgba) throws IOException {
+        Mat frame = rgba;
+        if (scale < 1.0) {
+            Imgproc.resize(rgba, scaled, new Size(), scale, scale, Imgproc.INTER_AREA);
+            frame = scaled;
+        }
+
+        long frameSeq;
+        long dropped;
+        synchronized (busy) {
+            frameSeq = ++seq;
+            dropped = droppedSinceLast;
+            droppedSinceLast = 0;
+        }
+
+        WritableMap response = sink.createMap();
+        if (format.equals(FORMAT_JPEG)) {
+            response.putString("payload", toJpegBase64(frame));
+        }
+        else if (format.equals(FORMAT_RAW)) {
+            response.putString("payload", MatBuffers.toBase64(frame, 0, 0));
+        }
+        else {
+            int slot = nextSlot;
+            nextSlot = 1 - nextSlot;
+            writeShared(frame, slot, frameSeq);
+            response.putString("uri", slotPath(slot));
+            response.putInt("slot", slot);
+        }
+        response.putDouble("seq", frameSeq);
+        response.putString("format", format);
+        response.putInt("width", frame.cols());
+        response.putInt("height", frame.rows());
+        response.putInt("CvType", frame.type());
+        response.putDouble("dropped", dropped);
+        sink.emit("onCameraFrame", response);
+    }
+
+    private String toJpegBase64(Mat frame) {
+        if (bitmap == null || bitmap.getWidth() != frame.cols() || bitmap.getHeight() != frame.rows()) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            bitmap = Bitmap.createBitmap(frame.cols(), frame.rows(), Bitmap.Config.ARGB_8888);
+        }
+        Utils.matToBitmap(frame, bitmap);
+        stream.reset();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, stream);
+        return Base64.encodeToString(stream.buffer(), 0, stream.size(), Base64.NO_WRAP);
+    }
+
+    private String slotPath(int slot) {
+        return sharedPath + "." + slot;
+    }
+
+    // rewrites the slot's mapped file in place, the mapping only changes when the frame size does
+    private void writeShared(Mat frame, int slot, long frameSeq) throws IOException {
+        int elemSize = (int)frame.elemSize();
+        long dataSize = (long)frame.rows() * frame.cols() * elemSize;
+        long fileSize = MatFiles.HEADER_SIZE + dataSize;
+        MappedByteBuffer out = shared[slot];
+        if (out == null || out.capacity() != fileSize) {
+            closeShared(slot);
+            sharedFiles[slot] = new RandomAccessFile(new File(slotPath(slot)), "rw");
+            sharedFiles[slot].setLength(fileSize);
+            out = sharedFiles[slot].getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            out.order(ByteOrder.LITTLE_ENDIAN);
+            shared[slot] = out;
+        }
+        // sequence before the data goes first and after the data last so readers can spot a torn frame
+        out.putLong(MatFiles.SEQ_BEFORE_OFFSET, frameSeq);
+        out.putInt(0, MatFiles.MAGIC);
+        out.putInt(4, MatFiles.VERSION);
+        out.putInt(8, frame.rows());
+        out.putInt(12, frame.cols());
+        out.putInt(16, frame.type());
+        out.putInt(20, elemSize);
+        out.putLong(24, (long)frame.cols() * elemSize);
+        out.putLong(32, MatFiles.HEADER_SIZE);
+        out.position(MatFiles.HEADER_SIZE);
+        ByteBuffer data = MatBuffers.read(frame, 0, 0, MatBuffers.valuesFrom(frame, 0, 0));
+        out.put(data);
+        out.putLong(MatFiles.SEQ_AFTER_OFFSET, frameSeq);
+    }
+
+    private void closeShared(int slot) throws IOException {
+        shared[slot] = null;
+        if (sharedFiles[slot] != null) {
+            sharedFiles[slot].close();
+            sharedFiles[slot] = null;
+        }
+    }
+
+    public long totalDropped() {
+        synchronized (busy) {
+            return totalDropped;
+        }
+    }
+
+    // call once frames are no longer offered
+    public void release() {
+        synchronized (busy) {
+            scaled.release();
+            if (bitmap != null) {
+                bitmap.recycle();
+                bitmap = null;
+            }
+            for (int slot=0;slot < shared.length;slot++) {
+                try {
+                    closeShared(slot);
+                } catch (IOException ex) {
+                    Log.e(TAG, "Unable to close " + slotPath(slot) + ": " + ex.getMessage());
+                }
+            }
+        }
+    }
+}
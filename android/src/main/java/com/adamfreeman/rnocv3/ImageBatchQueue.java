@@ -0,0 +1,235 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableNativeMap;
+
+import org.opencv.core.Mat;
+
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ *  Imports (file -> Mat) and exports (Mat -> file) whole lists of images on a pool of I/O threads
+ *  sized to the cores so a large gallery does not hold up the react native modules thread.  Every
+ *  finished item is reported through the listener as it completes, with the running progress, and
+ *  the batch promise resolves once every item is done.  Each batch runs at most maxConcurrent
+ *  items at once (default 2) which bounds the number of decoded images alive at the same time, the
+ *  remaining items wait for a running one to finish instead of occupying a pool thread.
+ *
+ *  options (all optional): batchId (string, needed to cancel), maxConcurrent (int), plus the
+ *  decode options of FileUtils.readImage or the encoder options of FileUtils.writeImageNative
+ */
+class ImageBatchQueue {
+
+    private static final String TAG = ImageBatchQueue.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_CONCURRENT = 2;
+
+    interface Listener {
+        // called from an I/O thread once per finished item
+        void onItem(WritableMap item);
+    }
+
+    private interface ItemWork {
+        // fills in the per item result, throws if the item failed
+        void run(int index, WritableMap item) throws Exception;
+    }
+
+    private final class Batch {
+        final String batchId;
+        final int total;
+        final ItemWork work;
+        final Promise promise;
+        final AtomicInteger nextIndex = new AtomicInteger(0);
+        final AtomicInteger completed = new AtomicInteger(0);
+        final AtomicInteger failed = new AtomicInteger(0);
+        final AtomicInteger workers = new AtomicInteger(0);
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+        Batch(String batchId, int total, ItemWork work, Promise promise) {
+            this.batchId = batchId;
+            this.total = total;
+            this.work = work;
+            this.promise = promise;
+        }
+
+        // one worker runs items until there are none left, so a batch never occupies more pool
+        // threads than it was given workers
+        void drain() {
+            try {
+                int index;
+                while (!cancelled.get() && (index = nextIndex.getAndIncrement()) < total) {
+                    WritableMap item = new WritableNativeMap();
+                    if (batchId != null) {
+                        item.putString("batchId", batchId);
+                    }
+                    item.putInt("index", index);
+                    try {
+                        work.run(index, item);
+                    } catch (Throwable ex) {
+                        // errors from native code (OutOfMemoryError on a huge image, ...) only fail
+                        // their item, the buffers of that image are garbage by the next one
+                        String message = ex.getMessage() != null ? ex.getMessage() : ex.toString();
+                        Log.e(TAG, "Batch item " + index + " failed: " + message);
+                        failed.incrementAndGet();
+                        item.putString("error", message);
+                    }
+                    item.putInt("completed", completed.incrementAndGet());
+                    item.putInt("total", total);
+                    listener.onItem(item);
+                }
+            } finally {
+                // the last worker out settles the promise even if an item event could not be sent
+                if (workers.decrementAndGet() == 0) {
+                    finish();
+                }
+            }
+        }
+
+        void finish() {
+            if (batchId != null) {
+                batches.remove(batchId, this);
+            }
+            if (cancelled.get()) {
+                promise.reject("ECANCELED", "Image batch " + batchId + " was cancelled.");
+                return;
+            }
+            WritableMap result = new WritableNativeMap();
+            if (batchId != null) {
+                result.putString("batchId", batchId);
+            }
+            result.putInt("total", total);
+            result.putInt("succeeded", completed.get() - failed.get());
+            result.putInt("failed", failed.get());
+            promise.resolve(result);
+        }
+    }
+
+    private final Listener listener;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentHashMap<String, Batch> batches = new ConcurrentHashMap<String, Batch>();
+
+    public ImageBatchQueue(Listener listener) {
+        this.listener = listener;
+        int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        final AtomicInteger threadNum = new AtomicInteger(0);
+        executor = new ThreadPoolExecutor(numThreads, numThreads, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "RNOpencv3-io-" + threadNum.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private void start(ReadableMap options, int total, ItemWork work, Promise promise) {
+        String batchId = null;
+        int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+        if (options != null) {
+            if (options.hasKey("batchId") && !options.isNull("batchId")) {
+                batchId = options.getString("batchId");
+            }
+            if (options.hasKey("maxConcurrent")) {
+                maxConcurrent = Math.max(1, options.getInt("maxConcurrent"));
+            }
+        }
+
+        final Batch batch = new Batch(batchId, total, work, promise);
+        if (total == 0) {
+            batch.finish();
+            return;
+        }
+        if (batchId != null && batches.putIfAbsent(batchId, batch) != null) {
+            promise.reject("EEXIST", "Image batch " + batchId + " is already running.");
+            return;
+        }
+        int numWorkers = Math.min(maxConcurrent, total);
+        batch.workers.set(numWorkers);
+        for (int i=0;i < numWorkers;i++) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        batch.drain();
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                batch.cancelled.set(true);
+                if (batch.workers.decrementAndGet() == 0) {
+                    batch.finish();
+                }
+            }
+        }
+    }
+
+    // decodes every path into a new Mat, each item event has the Mat's matIndex, cols, rows and CvType
+    public void importImages(final ReadableArray inPaths, final ReadableMap options, Promise promise) {
+        start(options, inPaths.size(), new ItemWork() {
+            @Override
+            public void run(int index, WritableMap item) throws Exception {
+                String inPath = inPaths.getString(index);
+                item.putString("uri", inPath);
+                Mat img = FileUtils.readImage(inPath, options);
+                item.putInt("cols", img.cols());
+                item.putInt("rows", img.rows());
+                item.putInt("CvType", img.type());
+                item.putInt("matIndex", MatManager.getInstance().addMat(img, "image"));
+            }
+        }, promise);
+    }
+
+    // writes mats[i] to outPaths[i], each item event has the width, height, uri and size in bytes
+    public void exportImages(final ReadableArray mats, final ReadableArray outPaths, final ReadableMap options, Promise promise) {
+        if (mats.size() != outPaths.size()) {
+            promise.reject("EINVAL", "EINVAL: " + mats.size() + " mats but " + outPaths.size() + " paths");
+            return;
+        }
+        start(options, mats.size(), new ItemWork() {
+            @Override
+            public void run(int index, WritableMap item) throws Exception {
+                String outPath = outPaths.getString(index);
+                item.putString("uri", outPath);
+                Mat mat = (Mat)MatManager.getInstance().matAtIndex(mats.getMap(index).getInt("matIndex"));
+                if (mat == null) {
+                    throw new Exception("No Mat for item " + index);
+                }
+                item.putDouble("size", FileUtils.writeImageNative(mat, outPath, options));
+                item.putInt("width", mat.cols());
+                item.putInt("height", mat.rows());
+            }
+        }, promise);
+    }
+
+    // items that have not started are skipped, the batch promise rejects with ECANCELED
+    public boolean cancel(String batchId) {
+        Batch batch = batchId != null ? batches.get(batchId) : null;
+        if (batch == null) {
+            return false;
+        }
+        batch.cancelled.set(true);
+        return true;
+    }
+
+    public void shutdown() {
+        for (Batch batch : batches.values()) {
+            batch.cancelled.set(true);
+        }
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,116 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+
+/*
+ *  Image file I/O straight through OpenCV's Imgcodecs instead of android.graphics.Bitmap.  Mats keep
+ *  their real channel count and depth, e.g. gray images stay CV_8UC1 and 16 bit PNGs stay CV_16U,
+ *  and nothing is copied through an RGBA_8888 Bitmap.  Imgcodecs works in BGR(A) order, by default
+ *  Mats are converted to and from RGB(A) so they match the Mats made by the Bitmap path.
+ *  Only OpenCV is used here so this class also runs on a plain JVM.
+ */
+class ImageCodecs {
+
+    private ImageCodecs() {
+    }
+
+    private static Mat fromBgr(Mat img, boolean keepBgr) {
+        if (keepBgr || img.empty() || (img.channels() != 3 && img.channels() != 4)) {
+            return img;
+        }
+        Imgproc.cvtColor(img, img, img.channels() == 3 ? Imgproc.COLOR_BGR2RGB : Imgproc.COLOR_BGRA2RGBA);
+        return img;
+    }
+
+    // returns a BGR(A) copy to hand to Imgcodecs, or mat itself when no conversion is needed
+    private static Mat toBgr(Mat mat, boolean keepBgr) {
+        if (keepBgr || (mat.channels() != 3 && mat.channels() != 4)) {
+            return mat;
+        }
+        Mat bgr = new Mat();
+        Imgproc.cvtColor(mat, bgr, mat.channels() == 3 ? Imgproc.COLOR_RGB2BGR : Imgproc.COLOR_RGBA2BGRA);
+        return bgr;
+    }
+
+    // imread flags for an unchanged or grayscale read, EXIF orientation is left to the caller
+    public static int readFlags(boolean grayscale) {
+        return grayscale ? (Imgcodecs.IMREAD_GRAYSCALE | Imgcodecs.IMREAD_ANYDEPTH | Imgcodecs.IMREAD_IGNORE_ORIENTATION)
+            : Imgcodecs.IMREAD_UNCHANGED;
+    }
+
+    public static Mat read(String inPath, boolean grayscale, boolean keepBgr) throws IOException {
+        Mat img = Imgcodecs.imread(inPath, readFlags(grayscale));
+        if (img.empty()) {
+            throw new IOException("Decoding error unable to decode: " + inPath);
+        }
+        return fromBgr(img, keepBgr);
+    }
+
+    // 8 bit grayscale decoded at 1/sampleSize of the stored size where the codec supports it (JPEG
+    // decodes at the reduced size, other formats are scaled after decoding), sampleSize is 1, 2, 4
+    // or 8 and larger values are treated as 8
+    public static Mat readGray(String inPath, int sampleSize) throws IOException {
+        int flags = Imgcodecs.IMREAD_GRAYSCALE;
+        if (sampleSize >= 8) {
+            flags = Imgcodecs.IMREAD_REDUCED_GRAYSCALE_8;
+        }
+        else if (sampleSize >= 4) {
+            flags = Imgcodecs.IMREAD_REDUCED_GRAYSCALE_4;
+        }
+        else if (sampleSize >= 2) {
+            flags = Imgcodecs.IMREAD_REDUCED_GRAYSCALE_2;
+        }
+        Mat img = Imgcodecs.imread(inPath, flags | Imgcodecs.IMREAD_IGNORE_ORIENTATION);
+        if (img.empty()) {
+            throw new IOException("Decoding error unable to decode: " + inPath);
+        }
+        return img;
+    }
+
+    public static Mat decode(byte[] data, boolean grayscale, boolean keepBgr) throws IOException {
+        MatOfByte buf = new MatOfByte(data);
+        Mat img = Imgcodecs.imdecode(buf, readFlags(grayscale));
+        buf.release();
+        if (img.empty()) {
+            throw new IOException("Decoding error unable to decode image data");
+        }
+        return fromBgr(img, keepBgr);
+    }
+
+    // params are Imgcodecs IMWRITE_* key value pairs, may be null
+    public static void write(Mat mat, String outPath, MatOfInt params, boolean keepBgr) throws IOException {
+        Mat bgr = toBgr(mat, keepBgr);
+        try {
+            boolean written = params != null ? Imgcodecs.imwrite(outPath, bgr, params) : Imgcodecs.imwrite(outPath, bgr);
+            if (!written) {
+                throw new IOException("Encoding error unable to write: " + outPath);
+            }
+        } finally {
+            if (bgr != mat) {
+                bgr.release();
+            }
+        }
+    }
+
+    // ext is the file extension including the dot, e.g. ".png"
+    public static void encode(Mat mat, String ext, MatOfInt params, boolean keepBgr, MatOfByte out) throws IOException {
+        Mat bgr = toBgr(mat, keepBgr);
+        try {
+            boolean encoded = params != null ? Imgcodecs.imencode(ext, bgr, out, params) : Imgcodecs.imencode(ext, bgr, out);
+            if (!encoded) {
+                throw new IOException("Encoding error unable to encode " + ext);
+            }
+        } finally {
+            if (bgr != mat) {
+                bgr.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,323 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import android.util.Base64;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+ *  Bulk copies between a Mat and little endian bytes in the Mat's own depth (8U, 8S, 16U, 16S,
+ *  32S, 32F, 64F) so Mat data can cross the bridge as one base64 string instead of one boxed
+ *  number per element.  Scratch arrays are kept per thread and reused while the size stays the
+ *  same so steady state copies of same sized Mats do not allocate apart from the base64 string.
+ */
+class MatBuffers {
+
+    private static final class Scratch {
+        byte[] bytes = new byte[0];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        short[] shorts = new short[0];
+        int[] ints = new int[0];
+        float[] floats = new float[0];
+        double[] doubles = new double[0];
+
+        ByteBuffer bytes(int size) {
+            if (bytes.length != size) {
+                bytes = new byte[size];
+                buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            buffer.clear();
+            buffer.limit(size);
+            return buffer;
+        }
+    }
+
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private MatBuffers() {
+    }
+
+    public static int bytesPerElem(int depth) {
+        switch (depth) {
+            case CvType.CV_8U:
+            case CvType.CV_8S:
+                return 1;
+            case CvType.CV_16U:
+            case CvType.CV_16S:
+                return 2;
+            case CvType.CV_32S:
+            case CvType.CV_32F:
+                return 4;
+            case CvType.CV_64F:
+                return 8;
+            default:
+                throw new IllegalArgumentException("Unsupported Mat depth " + depth);
+        }
+    }
+
+    // number of channel values from (row, col) to the end of the Mat
+    public static int valuesFrom(Mat mat, int row, int col) {
+        return ((mat.rows() - row) * mat.cols() - col) * mat.channels();
+    }
+
+    // reads count channel values starting at (row, col) into a scratch buffer which is returned
+    // ready to read and only valid until the next call on this thread
+    public static ByteBuffer read(Mat mat, int row, int col, int count) {
+        Scratch s = scratch.get();
+        int depth = CvType.depth(mat.type());
+        ByteBuffer out = s.bytes(count * bytesPerElem(depth));
+        switch (depth) {
+            case CvType.CV_8U:
+            case CvType.CV_8S:
+                mat.get(row, col, s.bytes);
+                break;
+            case CvType.CV_16U:
+            case CvType.CV_16S:
+                if (s.shorts.length != count) {
+                    s.shorts = new short[count];
+                }
+                mat.get(row, col, s.shorts);
+                out.asShortBuffer().put(s.shorts);
+                break;
+            case CvType.CV_32S:
+                if (s.ints.length != count) {
+                    s.ints = new int[count];
+                }
+                mat.get(row, col, s.ints);
+                out.asIntBuffer().put(s.ints);
+                break;
+            case CvType.CV_32F:
+                if (s.floats.length != count) {
+                    s.floats = new float[count];
+                }
+                mat.get(row, col, s.floats);
+                out.asFloatBuffer().put(s.floats);
+                break;
+            case CvType.CV_64F:
+                if (s.doubles.length != count) {
+                    s.doubles = new double[count];
+                }
+                mat.get(row, col, s.doubles);
+                out.asDoubleBuffer().put(s.doubles);
+                break;
+        }
+        out.position(0);
+        return out;
+    }
+
+    // writes the remaining bytes of in, which must hold values of the Mat's depth, at (row, col)
+    public static void write(Mat mat, int row, int col, ByteBuffer in) {
+        Scratch s = scratch.get();
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        int depth = CvType.depth(mat.type());
+        int count = in.remaining() / bytesPerElem(depth);
+        switch (depth) {
+            case CvType.CV_8U:
+            case CvType.CV_8S:
+                if (in.hasArray() && in.arrayOffset() + in.position() == 0 && in.array().length == count) {
+                    mat.put(row, col, in.array());
+                }
+                else {
+                    byte[] bytes = new byte[count];
+                    in.get(bytes);
+                    mat.put(row, col, bytes);
+                }
+                break;
+            case CvType.CV_16U:
+            case CvType.CV_16S:
+                if (s.shorts.length != count) {
+                    s.shorts = new short[count];
+                }
+                in.asShortBuffer().get(s.shorts);
+                mat.put(row, col, s.shorts);
+                break;
+            case CvType.CV_32S:
+                if (s.ints.length != count) {
+                    s.ints = new int[count];
+                }
+                in.asIntBuffer().get(s.ints);
+                mat.put(row, col, s.ints);
+                break;
+            case CvType.CV_32F:
+                if (s.floats.length != count) {
+                    s.floats = new float[count];
+                }
+                in.asFloatBuffer().get(s.floats);
+                mat.put(row, col, s.floats);
+                break;
+            case CvType.CV_64F:
+                if (s.doubles.length != count) {
+                    s.doubles = new double[count];
+                }
+                in.asDoubleBuffer().get(s.doubles);
+                mat.put(row, col, s.doubles);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported Mat depth " + depth);
+        }
+    }
+
+    // pushes every channel value from (row, col) on as numbers of the Mat's own depth
+    public static void pushValues(Mat mat, int row, int col, WritableArray out) {
+        int count = valuesFrom(mat, row, col);
+        if (count <= 0) {
+            return;
+        }
+        Scratch s = scratch.get();
+        int depth = CvType.depth(mat.type());
+        switch (depth) {
+            case CvType.CV_8U:
+            case CvType.CV_8S:
+                read(mat, row, col, count);
+                for (int i=0;i < count;i++) {
+                    out.pushInt(depth == CvType.CV_8U ? (s.bytes[i] & 0xff) : s.bytes[i]);
+                }
+                break;
+            case CvType.CV_16U:
+            case CvType.CV_16S:
+                read(mat, row, col, count);
+                for (int i=0;i < count;i++) {
+                    out.pushInt(depth == CvType.CV_16U ? (s.shorts[i] & 0xffff) : s.shorts[i]);
+                }
+                break;
+            case CvType.CV_32S:
+                read(mat, row, col, count);
+                for (int i=0;i < count;i++) {
+                    out.pushInt(s.ints[i]);
+                }
+                break;
+            case CvType.CV_32F:
+                read(mat, row, col, count);
+                for (int i=0;i < count;i++) {
+                    out.pushDouble(s.floats[i]);
+                }
+                break;
+            case CvType.CV_64F:
+                read(mat, row, col, count);
+                for (int i=0;i < count;i++) {
+                    out.pushDouble(s.doubles[i]);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported Mat depth " + depth);
+        }
+    }
+
+    private static long clamp(double val, long lo, long hi) {
+        long rounded = Math.round(val);
+        return rounded < lo ? lo : (rounded > hi ? hi : rounded);
+    }
+
+    // writes numbers at (row, col) converting them to the Mat's depth with saturation like OpenCV
+    public static void putValues(Mat mat, int row, int col, ReadableArray data) {
+        int count = data.size();
+        int depth = CvType.depth(mat.type());
+        switch (depth) {
+            case CvType.CV_8U:
+            case CvType.CV_8S: {
+                byte[] vals = new byte[count];
+                long lo = depth == CvType.CV_8U ? 0 : Byte.MIN_VALUE;
+                long hi = depth == CvType.CV_8U ? 255 : Byte.MAX_VALUE;
+                for (int i=0;i < count;i++) {
+                    vals[i] = (byte)clamp(data.getDouble(i), lo, hi);
+                }
+                mat.put(row, col, vals);
+                break;
+            }
+            case CvType.CV_16U:
+            case CvType.CV_16S: {
+                short[] vals = new short[count];
+                long lo = depth == CvType.CV_16U ? 0 : Short.MIN_VALUE;
+                long hi = depth == CvType.CV_16U ? 65535 : Short.MAX_VALUE;
+                for (int i=0;i < count;i++) {
+                    vals[i] = (short)clamp(data.getDouble(i), lo, hi);
+                }
+                mat.put(row, col, vals);
+                break;
+            }
+            case CvType.CV_32S: {
+                int[] vals = new int[count];
+                for (int i=0;i < count;i++) {
+                    vals[i] = (int)clamp(data.getDouble(i), Integer.MIN_VALUE, Integer.MAX_VALUE);
+                }
+                mat.put(row, col, vals);
+                break;
+            }
+            case CvType.CV_32F: {
+                float[] vals = new float[count];
+                for (int i=0;i < count;i++) {
+                    vals[i] = (float)data.getDouble(i);
+                }
+                mat.put(row, col, vals);
+                break;
+            }
+            case CvType.CV_64F: {
+                double[] vals = new double[count];
+                for (int i=0;i < count;i++) {
+                    vals[i] = data.getDouble(i);
+                }
+                mat.put(row, col, vals);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported Mat depth " + depth);
+        }
+    }
+
+    // region map is {x, y, width, height}, missing keys default to the rest of the Mat so
+    // {y, height} alone selects a range of rows, the returned Mat shares data with mat and
+    // can be released without affecting it
+    public static Mat region(Mat mat, ReadableMap regionMap) {
+        int x = 0, y = 0, width = mat.cols(), height = mat.rows();
+        if (regionMap != null) {
+            x = regionMap.hasKey("x") ? regionMap.getInt("x") : 0;
+            y = regionMap.hasKey("y") ? regionMap.getInt("y") : 0;
+            width = regionMap.hasKey("width") ? regionMap.getInt("width") : mat.cols() - x;
+            height = regionMap.hasKey("height") ? regionMap.getInt("height") : mat.rows() - y;
+        }
+        if (x < 0 || y < 0 || width < 0 || height < 0 || x + width > mat.cols() || y + height > mat.rows()) {
+            throw new IllegalArgumentException("Region is outside of the " + mat.cols() + "x" + mat.rows() + " Mat");
+        }
+        return mat.submat(new Rect(x, y, width, height));
+    }
+
+    // throws IllegalArgumentException unless (row, col) is inside the Mat and its depth is supported,
+    // (0, 0) of an empty Mat is allowed and has no values after it
+    public static void checkPosition(Mat mat, int row, int col) {
+        bytesPerElem(CvType.depth(mat.type()));
+        boolean empty = mat.rows() == 0 || mat.cols() == 0;
+        if (empty ? (row != 0 || col != 0) : (row < 0 || col < 0 || row >= mat.rows() || col >= mat.cols())) {
+            throw new IllegalArgumentException("Position (" + row + ", " + col + ") is outside of the " +
+                mat.cols() + "x" + mat.rows() + " Mat");
+        }
+    }
+
+    public static String toBase64(Mat mat, int row, int col) {
+        checkPosition(mat, row, col);
+        int count = valuesFrom(mat, row, col);
+        if (count == 0) {
+            return "";
+        }
+        ByteBuffer bytes = read(mat, row, col, count);
+        return Base64.encodeToString(bytes.array(), 0, bytes.limit(), Base64.NO_WRAP);
+    }
+
+    public static void fromBase64(Mat mat, int row, int col, String data) {
+        checkPosition(mat, row, col);
+        write(mat, row, col, ByteBuffer.wrap(Base64.decode(data, Base64.NO_WRAP)));
+    }
+}
@@ -0,0 +1,148 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ *  Raw Mat files: a 64 byte little endian header followed by the Mat's elements row after row with
+ *  no padding, so any depth and channel count is stored losslessly and without encoding.
+ *
+ *    0  int  magic 'RMAT'     4  int  version       8  int  rows       12  int  cols
+ *    16 int  CvType           20 int  elemSize      24 long step       32  long data offset
+ *    40 long sequence before  48 long sequence after
+ *
+ *  The sequence fields are 0 in saved files.  FrameStreamer rewrites frames in place and writes the
+ *  frame's sequence number before the data and again after it, a reader that finds the same value
+ *  in both after copying the data got a whole frame, load throws if they differ.
+ *
+ *  Loading maps the file with FileChannel.map and wraps the mapped bytes in a Mat, which is then
+ *  cloned, so the data is copied exactly once from the page cache into native memory.  Only 2D
+ *  Mats are supported.
+ */
+class MatFiles {
+
+    public static final int MAGIC = 0x54414d52;  // "RMAT" read little endian
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int SEQ_BEFORE_OFFSET = 40;
+    public static final int SEQ_AFTER_OFFSET = 48;
+
+    private MatFiles() {
+    }
+
+    // returns the size of the written file in bytes
+    public static long save(Mat mat, String outPath) throws IOException {
+        if (mat == null || mat.dims() > 2) {
+            throw new IOException("Only 2D Mats can be saved to " + outPath);
+        }
+        int rows = mat.rows();
+        int cols = mat.cols();
+        int elemSize = (int)mat.elemSize();
+        long step = (long)cols * elemSize;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(rows);
+        header.putInt(cols);
+        header.putInt(mat.type());
+        header.putInt(elemSize);
+        header.putLong(step);
+        header.putLong(HEADER_SIZE);
+        header.clear();
+
+        File outFile = new File(outPath);
+        File tmpFile = new File(outPath + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            FileChannel channel = out.getChannel();
+            writeFully(channel, header);
+            // a row at a time keeps the scratch buffer small and works for submats too
+            int valuesPerRow = cols * mat.channels();
+            for (int row=0;row < rows && valuesPerRow > 0;row++) {
+                writeFully(channel, MatBuffers.read(mat, row, 0, valuesPerRow));
+            }
+            channel.force(false);
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(outFile)) {
+            tmpFile.delete();
+            throw new IOException("Unable to write " + outPath);
+        }
+        return outFile.length();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    public static Mat load(String inPath) throws IOException {
+        FileInputStream in = new FileInputStream(inPath);
+        try {
+            FileChannel channel = in.getChannel();
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) {
+                throw new IOException("Not a raw Mat file: " + inPath);
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if (mapped.getInt(0) != MAGIC) {
+                throw new IOException("Not a raw Mat file: " + inPath);
+            }
+            if (mapped.getInt(4) != VERSION) {
+                throw new IOException("Unsupported raw Mat version " + mapped.getInt(4) + ": " + inPath);
+            }
+            int rows = mapped.getInt(8);
+            int cols = mapped.getInt(12);
+            int type = mapped.getInt(16);
+            int elemSize = mapped.getInt(20);
+            long step = mapped.getLong(24);
+            long dataOffset = mapped.getLong(32);
+            long dataSize = step * rows;
+            if (rows < 0 || cols < 0 || elemSize != CvType.ELEM_SIZE(type) || step != (long)cols * elemSize
+                    || dataOffset < HEADER_SIZE || dataOffset + dataSize > fileSize) {
+                throw new IOException("Corrupt raw Mat header: " + inPath);
+            }
+            if (rows == 0 || cols == 0) {
+                return new Mat(rows, cols, type);
+            }
+
+            // read the sequence the writer stores last before the copy and the one it stores first after
+            long seqAfter = mapped.getLong(SEQ_AFTER_OFFSET);
+            mapped.position((int)dataOffset);
+            ByteBuffer data = mapped.slice();
+            data.limit((int)dataSize);
+            Mat mat;
+            if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+                mat = new Mat(rows, cols, type);
+                MatBuffers.write(mat, 0, 0, data);
+            }
+            else {
+                // the wrapper shares the mapped pages, clone makes the one copy the Mat will own
+                Mat wrapped = new Mat(rows, cols, type, data);
+                mat = wrapped.clone();
+                wrapped.release();
+            }
+            if (mapped.getLong(SEQ_BEFORE_OFFSET) != seqAfter) {
+                mat.release();
+                throw new IOException("Frame was rewritten while it was read, try again: " + inPath);
+            }
+            return mat;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -2,11 +2,22 @@
 package com.adamfreeman.rnocv3;
 
 import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableType;
 import com.facebook.react.bridge.WritableNativeArray;
+import com.facebook.react.bridge.WritableNativeMap;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.opencv.core.Scalar;
 import org.opencv.core.Mat;
@@ -18,14 +29,112 @@ import android.util.Log;
 /*
  *  In javascript land a Mat is an opaque object represented by an integer index into an array ...
  *  That way large amounts of data do not need to be encoded decoded and passed back-and-forth
+ *
+ *  The index is really a handle into a slot map: the low bits are the slot and the high bits are
+ *  the generation of that slot.  Deleting a Mat frees its slot for reuse and bumps the generation
+ *  so any handle JS still holds to the old Mat resolves to null instead of to whatever Mat gets
+ *  the slot next.  Creates and deletes never shift other slots so they are all constant time.
+ *
+ *  The registry is used from the native modules thread, camera callbacks and worker threads at
+ *  the same time.  Slots live in fixed pages of immutable entries that are only ever swapped with
+ *  compare-and-set so matAtIndex never takes a lock.  Free slots are kept on a few striped stacks
+ *  so threads creating and releasing Mats concurrently rarely contend on the same lock.  Only the
+ *  registry is thread safe, callers still have to coordinate writes to the contents of one Mat.
+ *
+ *  Every entry also records the native bytes of its Mat (total() * elemSize() when it was added or
+ *  last set), an optional tag naming where it came from and when it was created, so the live count,
+ *  total bytes and the largest Mats can be listed to find leaks.  With a soft budget set the budget
+ *  listener is warned once each time the tracked bytes go over it, and with evictScratch the oldest
+ *  Mats tagged SCRATCH_TAG are deleted until the total is back under the budget.
  */
 class MatManager {
 
     private static final String TAG = MatManager.class.getSimpleName();
 
-    private static ArrayList mats = new ArrayList<Object>();
+    private static final int SLOT_BITS = 16;
+    private static final int MAX_SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = MAX_SLOTS - 1;
+    // keep handles positive, generation wraps around after 2^15 reuses of a slot
+    private static final int GENERATION_MASK = (1 << (31 - SLOT_BITS)) - 1;
 
-    private static MatManager matManager = null;
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int NUM_STRIPES = 8;
+
+    public static final String SCRATCH_TAG = "scratch";
+
+    interface BudgetListener {
+        void onBudgetExceeded(long trackedBytes, long budgetBytes, int liveCount);
+    }
+
+    // a slot entry is immutable, a null mat marks a free slot waiting for its next generation
+    private static final class Slot {
+        final int generation;
+        final Object mat;
+        final String tag;
+        final long bytes;
+        final long createdAt;
+
+        Slot(int generation, Object mat, String tag, long bytes, long createdAt) {
+            this.generation = generation;
+            this.mat = mat;
+            this.tag = tag;
+            this.bytes = bytes;
+            this.createdAt = createdAt;
+        }
+    }
+
+    // stack of free slots guarded by its own monitor
+    private static final class FreeStripe {
+        private int[] slots = new int[64];
+        private int size = 0;
+
+        synchronized void push(int slot) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            slots[size++] = slot;
+        }
+
+        synchronized int pop() {
+            return size > 0 ? slots[--size] : -1;
+        }
+    }
+
+    private static final AtomicReferenceArray<AtomicReferenceArray<Slot>> pages =
+        new AtomicReferenceArray<AtomicReferenceArray<Slot>>(MAX_SLOTS / PAGE_SIZE);
+    private static final FreeStripe[] freeStripes = new FreeStripe[NUM_STRIPES];
+    static {
+        for (int i=0;i < NUM_STRIPES;i++) {
+            freeStripes[i] = new FreeStripe();
+        }
+    }
+    // high water mark of slots ever handed out
+    private static final AtomicInteger numSlots = new AtomicInteger(0);
+
+    private static final AtomicInteger liveCount = new AtomicInteger(0);
+    private static final AtomicLong trackedBytes = new AtomicLong(0);
+    private static volatile long budgetBytes = 0;
+    private static volatile boolean evictScratch = false;
+    private static volatile BudgetListener budgetListener = null;
+    // set while over budget so the listener hears about each crossing once
+    private static final AtomicBoolean overBudget = new AtomicBoolean(false);
+    private static final AtomicBoolean evicting = new AtomicBoolean(false);
+    // set while this thread creates a batch, the budget is checked once the whole batch exists
+    private static final ThreadLocal<Boolean> inBatch = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+
+    // handles created in each open scope, deleted together when the scope is closed
+    private static final AtomicInteger nextScopeId = new AtomicInteger(1);
+    private static final ConcurrentHashMap<Integer, ArrayList<Integer>> scopes =
+        new ConcurrentHashMap<Integer, ArrayList<Integer>>();
+
+    private static final MatManager matManager = new MatManager();
 
     private MatManager() {
     }
@@ -33,39 +142,107 @@ class MatManager {
     // static method to create instance of Singleton class
     public static MatManager getInstance()
     {
-        if (matManager == null)
-            matManager = new MatManager();
-
         return matManager;
     }
 
+    private static int slotOf(int matIndex) {
+        return matIndex & SLOT_MASK;
+    }
+
+    private static int generationOf(int matIndex) {
+        return (matIndex >>> SLOT_BITS) & GENERATION_MASK;
+    }
+
+    private static int makeHandle(int slot, int generation) {
+        return ((generation & GENERATION_MASK) << SLOT_BITS) | slot;
+    }
+
+    private static AtomicReferenceArray<Slot> pageFor(int slot, boolean create) {
+        int pageIndex = slot >>> PAGE_BITS;
+        AtomicReferenceArray<Slot> page = pages.get(pageIndex);
+        if (page == null && create) {
+            pages.compareAndSet(pageIndex, null, new AtomicReferenceArray<Slot>(PAGE_SIZE));
+            page = pages.get(pageIndex);
+        }
+        return page;
+    }
+
+    private static Slot entryAt(int slot) {
+        AtomicReferenceArray<Slot> page = pageFor(slot, false);
+        return page != null ? page.get(slot & PAGE_MASK) : null;
+    }
+
+    private static int stripeIndex() {
+        return (int)(Thread.currentThread().getId() % NUM_STRIPES);
+    }
+
+    private static int allocSlot() {
+        // prefer the stripe of this thread then steal from the others
+        int start = stripeIndex();
+        for (int i=0;i < NUM_STRIPES;i++) {
+            int slot = freeStripes[(start + i) % NUM_STRIPES].pop();
+            if (slot >= 0) {
+                return slot;
+            }
+        }
+        int slot = numSlots.getAndIncrement();
+        if (slot >= MAX_SLOTS) {
+            numSlots.decrementAndGet();
+            throw new IllegalStateException("Too many live Mats, delete some before creating more.");
+        }
+        pageFor(slot, true);
+        return slot;
+    }
+
+    // atomically retires a live entry, returns the Mat it held or null if the handle was stale
+    private static Object freeSlot(int matIndex) {
+        if (matIndex < 0) {
+            return null;
+        }
+        int slot = slotOf(matIndex);
+        AtomicReferenceArray<Slot> page = pageFor(slot, false);
+        if (page == null) {
+            return null;
+        }
+        Slot entry = page.get(slot & PAGE_MASK);
+        if (entry == null || entry.mat == null || entry.generation != generationOf(matIndex)) {
+            return null;
+        }
+        Slot retired = new Slot((entry.generation + 1) & GENERATION_MASK, null, null, 0, 0);
+        if (!page.compareAndSet(slot & PAGE_MASK, entry, retired)) {
+            // lost the race to another delete of the same handle
+            return null;
+        }
+        liveCount.decrementAndGet();
+        if (trackedBytes.addAndGet(-entry.bytes) <= budgetBytes) {
+            overBudget.set(false);
+        }
+        freeStripes[stripeIndex()].push(slot);
+        return entry.mat;
+    }
+
     public static int createEmptyMat() {
-        int matIndex = mats.size();
         Mat emptyMat = new Mat();
-        mats.add(emptyMat);
-        return matIndex;
+        return addMat(emptyMat, "Mat");
     }
 
     public static int createMat(int rows, int cols, int cvtype, ReadableMap scalarMap) {
-        int matIndex = mats.size();
         Mat matToAdd = null;
 
         if (scalarMap != null) {
 	        ReadableArray cvscalar = scalarMap.getArray("vals");
 	        Scalar scalarVal = new Scalar(cvscalar.getDouble(0),cvscalar.getDouble(1),
 	          cvscalar.getDouble(2),cvscalar.getDouble(3));
-            matToAdd = new Mat(rows, cols, cvtype, scalarVal);
+            matToAdd = MatPool.getInstance().acquire(rows, cols, cvtype);
+            matToAdd.setTo(scalarVal);
         }
         else {
-            matToAdd = new Mat(rows, cols, cvtype);
+            matToAdd = MatPool.getInstance().acquire(rows, cols, cvtype);
         }
-        mats.add(matToAdd);//cv::Mat mat(480, 640, CV_8UC3, cv::Scalar(255,0,255));
-
-        return matIndex;
+        return addMat(matToAdd, "Mat");//cv::Mat mat(480, 640, CV_8UC3, cv::Scalar(255,0,255));
     }
 
     public static int createMatOfInt(int lomatval, int himatval) {
-        int matIndex = mats.size();
         MatOfInt matToAdd;
 		if (lomatval == himatval) {
 			matToAdd = new MatOfInt(lomatval);
@@ -73,12 +250,10 @@ class MatManager {
 		else {
 			matToAdd = new MatOfInt(lomatval, himatval);
 		}
-        mats.add(matToAdd);
-        return matIndex;
+        return addMat(matToAdd, "MatOfInt");
     }
 
     public static int createMatOfFloat(float lomatval, float himatval) {
-        int matIndex = mats.size();
         MatOfFloat matToAdd;
 		if (lomatval == himatval) {
 			matToAdd = new MatOfFloat(lomatval);
@@ -86,44 +261,98 @@ class MatManager {
 		else {
 			matToAdd = new MatOfFloat(lomatval, himatval);
 		}
-        mats.add(matToAdd);
-        return matIndex;
+        return addMat(matToAdd, "MatOfFloat");
+    }
+
+    private static long bytesOf(Object mat) {
+        if (mat instanceof Mat) {
+            Mat m = (Mat)mat;
+            return m.total() * m.elemSize();
+        }
+        return 0;
     }
 
     public static int addMat(Object matToAdd) {
-        int matIndex = mats.size();
-        mats.add(matToAdd);
-        return matIndex;
+        return addMat(matToAdd, null);
+    }
+
+    public static int addMat(Object matToAdd, String tag) {
+        int slot = allocSlot();
+        AtomicReferenceArray<Slot> page = pageFor(slot, true);
+        Slot entry = page.get(slot & PAGE_MASK);
+        int generation = entry != null ? entry.generation : 0;
+        long bytes = bytesOf(matToAdd);
+        // the slot is owned by this thread until the handle is returned
+        page.set(slot & PAGE_MASK, new Slot(generation, matToAdd, tag, bytes, System.currentTimeMillis()));
+        liveCount.incrementAndGet();
+        trackedBytes.addAndGet(bytes);
+        if (!inBatch.get()) {
+            checkBudget();
+        }
+        return makeHandle(slot, generation);
     }
 
     public static Object matAtIndex(int matIndex) {
-        if (matIndex >= 0 && matIndex < mats.size()) {
-            Object mat = mats.get(matIndex);
-            return mat;
+        if (matIndex < 0) {
+            return null;
+        }
+        Slot entry = entryAt(slotOf(matIndex));
+        if (entry != null && entry.generation == generationOf(matIndex)) {
+            return entry.mat;
         }
         return null;
     }
 
     public static void setMat(int matIndex, Object matToSet) {
-        mats.set(matIndex, matToSet);
+        if (matIndex >= 0 && matToSet != null) {
+            int slot = slotOf(matIndex);
+            AtomicReferenceArray<Slot> page = pageFor(slot, false);
+            while (page != null) {
+                Slot entry = page.get(slot & PAGE_MASK);
+                if (entry == null || entry.mat == null || entry.generation != generationOf(matIndex)) {
+                    break;
+                }
+                // Mats passed as dst to OpenCV calls are reallocated in place so re-measure them
+                long bytes = bytesOf(matToSet);
+                if ((entry.mat == matToSet && entry.bytes == bytes) ||
+                    page.compareAndSet(slot & PAGE_MASK, entry,
+                        new Slot(entry.generation, matToSet, entry.tag, bytes, entry.createdAt))) {
+                    if (bytes != entry.bytes) {
+                        trackedBytes.addAndGet(bytes - entry.bytes);
+                        checkBudget();
+                    }
+                    return;
+                }
+            }
+        }
+        Log.w(TAG, "setMat called with stale or invalid Mat handle " + matIndex);
     }
 
     // This method should only be used for sending data to a callback in the RN app ...
-    // TODO: get this to work for different data types checking CvType
+    // values keep the Mat's depth, 8 16 and 32 bit integer Mats come back as integers
     public static WritableArray getMatData(int matIndex, int rownum, int colnum) {
         WritableArray retArr = new WritableNativeArray();
         Mat mat = (Mat)matAtIndex(matIndex);
-		
-		if (mat.rows() > 0 && mat.cols() > 0) {
-        	float[] retFloats = new float[mat.rows() * mat.cols() * mat.channels()];
-        	mat.get(rownum, colnum, retFloats);
-        	for (float retFloat : retFloats) {
-          		retArr.pushDouble(retFloat);
-        	}
+
+		if (mat != null && mat.rows() > 0 && mat.cols() > 0) {
+            MatBuffers.pushValues(mat, rownum, colnum, retArr);
 		}
         return retArr;
     }
 
+    // only the data inside the region {x, y, width, height} is read
+    public static WritableArray getMatRegionData(int matIndex, ReadableMap regionMap) {
+        WritableArray retArr = new WritableNativeArray();
+        Mat mat = (Mat)matAtIndex(matIndex);
+
+        if (mat != null && mat.rows() > 0 && mat.cols() > 0) {
+            Mat roi = MatBuffers.region(mat, regionMap);
+            MatBuffers.pushValues(roi, 0, 0, retArr);
+            roi.release();
+        }
+        return retArr;
+    }
+
     public static void setTo(int matIndex, ReadableMap cvscalar) {
         Mat dMat = (Mat)matAtIndex(matIndex);
         ReadableArray scalarVal = cvscalar.getArray("vals");
@@ -133,31 +362,49 @@ class MatManager {
         setMat(matIndex, dMat);
     }
 
-    // TODO: check type to use different types ...
     public static void put(int matIndex, int rownum, int colnum, ReadableArray data) {
         Mat dMat = (Mat)matAtIndex(matIndex);
-        ArrayList listOfObjs = data.toArrayList();
-        float[] arr = new float[listOfObjs.size()];
-        int i = 0;
-        for (Object listObj : listOfObjs) {
-            double dd = (double)listObj;
-            arr[i++] = (float)dd;
-        }
-        dMat.put(rownum, colnum, arr);
+        MatBuffers.putValues(dMat, rownum, colnum, data);
         setMat(matIndex, dMat);
     }
 
+    // throws IllegalArgumentException for a deleted Mat, a region outside of it or the wrong amount of data
+    public static void putRegion(int matIndex, ReadableMap regionMap, ReadableArray data) {
+        Mat dMat = (Mat)matAtIndex(matIndex);
+        if (dMat == null) {
+            throw new IllegalArgumentException("Mat has been deleted or was never created.");
+        }
+        Mat roi = MatBuffers.region(dMat, regionMap);
+        try {
+            int count = data.size();
+            if (count % roi.channels() != 0 || count > MatBuffers.valuesFrom(roi, 0, 0)) {
+                throw new IllegalArgumentException(count + " values do not fit the " + roi.cols() + "x" +
+                    roi.rows() + " region with " + roi.channels() + " channels");
+            }
+            MatBuffers.putValues(roi, 0, 0, data);
+        } finally {
+            roi.release();
+        }
+    }
+
     public static void transpose(int matIndex) {
         Mat dMat = (Mat)matAtIndex(matIndex);
         dMat.t();
         setMat(matIndex, dMat);
     }
 
-    private static void releaseMat(Object dMat) {
+    // pool is false when the memory has to be given back, e.g. budget evictions and deleteAllMats
+    private static void releaseMat(Object dMat, boolean pool) {
 
         String objType = dMat.getClass().getSimpleName();
         if (objType.equals("Mat")) {
-            ((Mat)dMat).release();
+            // plain Mats go back to the pool so the next Mat of the same shape reuses the buffer
+            if (pool) {
+                MatPool.getInstance().recycle((Mat)dMat);
+            }
+            else {
+                ((Mat)dMat).release();
+            }
         }
         else if (objType.equals("MatOfInt")) {
             ((MatOfInt)dMat).release();
@@ -169,17 +416,321 @@ class MatManager {
     }
 
     public static void deleteMatAtIndex(int matIndex) {
-        Object mat = matAtIndex(matIndex);
-        releaseMat(mat);
-        mats.remove(matIndex);
+        Object mat = freeSlot(matIndex);
+        if (mat == null) {
+            Log.w(TAG, "deleteMat called with stale or invalid Mat handle " + matIndex);
+            return;
+        }
+        releaseMat(mat, true);
     }
 
+    // Mats created by other threads while this runs may survive it
     public static void deleteAllMats() {
-        int matsSize = mats.size();
-        for (int i=0;i < matsSize;i++) {
-            Object mat = matAtIndex(i);
-            releaseMat(mat);
+        int slotCount = Math.min(numSlots.get(), MAX_SLOTS);
+        for (int slot=0;slot < slotCount;slot++) {
+            Slot entry = entryAt(slot);
+            if (entry != null && entry.mat != null) {
+                Object mat = freeSlot(makeHandle(slot, entry.generation));
+                if (mat != null) {
+                    releaseMat(mat, false);
+                }
+            }
+        }
+    }
+
+    // tags a live Mat, e.g. with SCRATCH_TAG to let the soft budget evict it, returns false if stale
+    public static boolean setTag(int matIndex, String tag) {
+        if (matIndex < 0) {
+            return false;
+        }
+        int slot = slotOf(matIndex);
+        AtomicReferenceArray<Slot> page = pageFor(slot, false);
+        while (page != null) {
+            Slot entry = page.get(slot & PAGE_MASK);
+            if (entry == null || entry.mat == null || entry.generation != generationOf(matIndex)) {
+                break;
+            }
+            if (page.compareAndSet(slot & PAGE_MASK, entry,
+                    new Slot(entry.generation, entry.mat, tag, entry.bytes, entry.createdAt))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static int liveCount() {
+        return liveCount.get();
+    }
+
+    public static long trackedBytes() {
+        return trackedBytes.get();
+    }
+
+    // budget of 0 turns the soft budget off
+    public static void setBudget(long bytes, boolean evictScratchMats, BudgetListener listener) {
+        budgetBytes = Math.max(0, bytes);
+        evictScratch = evictScratchMats;
+        budgetListener = listener;
+        overBudget.set(false);
+        checkBudget();
+    }
+
+    private static void checkBudget() {
+        checkBudget(null);
+    }
+
+    // keep holds sorted handles that must not be evicted, may be null
+    private static void checkBudget(int[] keep) {
+        long budget = budgetBytes;
+        if (budget <= 0 || trackedBytes.get() <= budget) {
+            if (overBudget.get()) {
+                overBudget.set(false);
+            }
+            return;
+        }
+        if (evictScratch && evicting.compareAndSet(false, true)) {
+            try {
+                evictScratchMats(budget, keep);
+            } finally {
+                evicting.set(false);
+            }
+            if (trackedBytes.get() <= budget) {
+                return;
+            }
+        }
+        BudgetListener listener = budgetListener;
+        if (listener != null && overBudget.compareAndSet(false, true)) {
+            listener.onBudgetExceeded(trackedBytes.get(), budget, liveCount.get());
+        }
+    }
+
+    private static final class LiveMat {
+        final int matIndex;
+        final Slot entry;
+        final long bytes;
+
+        LiveMat(int matIndex, Slot entry, long bytes) {
+            this.matIndex = matIndex;
+            this.entry = entry;
+            this.bytes = bytes;
+        }
+    }
+
+    private static ArrayList<LiveMat> liveMats(boolean remeasure) {
+        ArrayList<LiveMat> live = new ArrayList<LiveMat>();
+        int slotCount = Math.min(numSlots.get(), MAX_SLOTS);
+        for (int slot=0;slot < slotCount;slot++) {
+            Slot entry = entryAt(slot);
+            if (entry != null && entry.mat != null) {
+                live.add(new LiveMat(makeHandle(slot, entry.generation), entry,
+                    remeasure ? bytesOf(entry.mat) : entry.bytes));
+            }
+        }
+        return live;
+    }
+
+    private static void evictScratchMats(long budget, int[] keep) {
+        ArrayList<LiveMat> scratchMats = new ArrayList<LiveMat>();
+        for (LiveMat live : liveMats(false)) {
+            if (SCRATCH_TAG.equals(live.entry.tag) && (keep == null || Arrays.binarySearch(keep, live.matIndex) < 0)) {
+                scratchMats.add(live);
+            }
+        }
+        Collections.sort(scratchMats, new Comparator<LiveMat>() {
+            @Override
+            public int compare(LiveMat a, LiveMat b) {
+                return a.entry.createdAt < b.entry.createdAt ? -1 : (a.entry.createdAt == b.entry.createdAt ? 0 : 1);
+            }
+        });
+        for (LiveMat live : scratchMats) {
+            if (trackedBytes.get() <= budget) {
+                break;
+            }
+            Log.w(TAG, "Over the Mat memory budget, evicting scratch Mat " + live.matIndex);
+            // the point is to free memory so the buffer is released, not pooled
+            Object mat = freeSlot(live.matIndex);
+            if (mat != null) {
+                releaseMat(mat, false);
+            }
+        }
+    }
+
+    // {count, bytes, budget, pooledBytes, top: [{matIndex, bytes, rows, cols, CvType, tag, ageMs}]} with the
+    // topN largest Mats, bytes are measured now so Mats resized behind the registry's back count
+    public static WritableMap getMemoryStats(int topN) {
+        ArrayList<LiveMat> live = liveMats(true);
+        long totalBytes = 0;
+        for (LiveMat mat : live) {
+            totalBytes += mat.bytes;
+        }
+        Collections.sort(live, new Comparator<LiveMat>() {
+            @Override
+            public int compare(LiveMat a, LiveMat b) {
+                return a.bytes > b.bytes ? -1 : (a.bytes == b.bytes ? 0 : 1);
+            }
+        });
+
+        long now = System.currentTimeMillis();
+        WritableArray top = new WritableNativeArray();
+        for (int i=0;i < Math.min(topN, live.size());i++) {
+            LiveMat mat = live.get(i);
+            WritableMap item = new WritableNativeMap();
+            item.putInt("matIndex", mat.matIndex);
+            item.putDouble("bytes", mat.bytes);
+            if (mat.entry.mat instanceof Mat) {
+                Mat m = (Mat)mat.entry.mat;
+                item.putInt("rows", m.rows());
+                item.putInt("cols", m.cols());
+                item.putInt("CvType", m.type());
+            }
+            if (mat.entry.tag != null) {
+                item.putString("tag", mat.entry.tag);
+            }
+            item.putDouble("ageMs", now - mat.entry.createdAt);
+            top.pushMap(item);
+        }
+
+        WritableMap stats = new WritableNativeMap();
+        stats.putInt("count", live.size());
+        stats.putDouble("bytes", totalBytes);
+        stats.putDouble("budget", budgetBytes);
+        stats.putDouble("pooledBytes", MatPool.getInstance().pooledBytes());
+        stats.putArray("top", top);
+        return stats;
+    }
+
+    public static int openScope() {
+        int scopeId = nextScopeId.getAndIncrement();
+        scopes.put(scopeId, new ArrayList<Integer>());
+        return scopeId;
+    }
+
+    // deletes every Mat created in the scope that is still alive, returns how many were deleted
+    public static int closeScope(int scopeId) {
+        ArrayList<Integer> handles = scopes.remove(scopeId);
+        if (handles == null) {
+            return 0;
+        }
+        int numDeleted = 0;
+        synchronized (handles) {
+            for (int matIndex : handles) {
+                Object mat = freeSlot(matIndex);
+                if (mat != null) {
+                    releaseMat(mat, true);
+                    numDeleted++;
+                }
+            }
+        }
+        return numDeleted;
+    }
+
+    private static int createFromSpec(ReadableMap spec) {
+        String type = spec.hasKey("type") ? spec.getString("type") : "Mat";
+        int matIndex;
+        if (type.equals("MatOfInt")) {
+            matIndex = createMatOfInt(spec.getInt("lo"), spec.getInt("hi"));
+        }
+        else if (type.equals("MatOfFloat")) {
+            matIndex = createMatOfFloat((float)spec.getDouble("lo"), (float)spec.getDouble("hi"));
+        }
+        else if (type.equals("Mat")) {
+            if (spec.hasKey("rows") && spec.hasKey("cols")) {
+                ReadableMap scalarMap = (spec.hasKey("scalar") && !spec.isNull("scalar")) ? spec.getMap("scalar") : null;
+                matIndex = createMat(spec.getInt("rows"), spec.getInt("cols"), spec.getInt("CvType"), scalarMap);
+            }
+            else {
+                matIndex = createEmptyMat();
+            }
+        }
+        else {
+            throw new IllegalArgumentException("Unknown Mat type " + type);
+        }
+        if (spec.hasKey("tag") && !spec.isNull("tag")) {
+            setTag(matIndex, spec.getString("tag"));
+        }
+        return matIndex;
+    }
+
+    /*
+     *  Creates one Mat per spec and returns {rows, cols, CvType, matIndex} for each in order.
+     *  A spec is {rows, cols, CvType, scalar, tag} for a Mat (an empty Mat without rows and cols)
+     *  or {type: 'MatOfInt' or 'MatOfFloat', lo, hi, tag}.  With a scopeId from openScope the Mats
+     *  are deleted by closeScope.  If anything fails the Mats already created are deleted.  The
+     *  budget is checked once the whole batch exists and never evicts Mats of the batch itself.
+     */
+    public static WritableArray createMats(ReadableArray specs, int scopeId) {
+        ArrayList<Integer> scopeHandles = null;
+        if (scopeId > 0) {
+            scopeHandles = scopes.get(scopeId);
+            if (scopeHandles == null) {
+                throw new IllegalArgumentException("No open Mat scope " + scopeId);
+            }
+        }
+        int[] created = new int[specs.size()];
+        int numCreated = 0;
+        try {
+            inBatch.set(true);
+            try {
+                for (int i=0;i < specs.size();i++) {
+                    created[i] = createFromSpec(specs.getMap(i));
+                    numCreated++;
+                }
+            } finally {
+                inBatch.set(false);
+            }
+            int[] keep = Arrays.copyOf(created, numCreated);
+            Arrays.sort(keep);
+            checkBudget(keep);
+
+            WritableArray result = new WritableNativeArray();
+            for (int i=0;i < numCreated;i++) {
+                Mat mat = (Mat)matAtIndex(created[i]);
+                if (mat == null) {
+                    // another thread deleted or evicted it
+                    throw new IllegalStateException("Mat " + created[i] + " was deleted while its batch was created");
+                }
+                WritableMap item = new WritableNativeMap();
+                item.putInt("rows", mat.rows());
+                item.putInt("cols", mat.cols());
+                item.putInt("CvType", mat.type());
+                item.putInt("matIndex", created[i]);
+                result.pushMap(item);
+            }
+            if (scopeHandles != null) {
+                synchronized (scopeHandles) {
+                    // closeScope unregisters the scope before it takes this lock to delete its
+                    // handles, Mats added after that would never be deleted
+                    if (scopes.get(scopeId) != scopeHandles) {
+                        throw new IllegalStateException("Mat scope " + scopeId + " was closed while its Mats were created");
+                    }
+                    for (int i=0;i < numCreated;i++) {
+                        scopeHandles.add(created[i]);
+                    }
+                }
+            }
+            return result;
+        } catch (RuntimeException ex) {
+            for (int i=0;i < numCreated;i++) {
+                Object mat = freeSlot(created[i]);
+                if (mat != null) {
+                    releaseMat(mat, true);
+                }
+            }
+            throw ex;
+        }
+    }
+
+    // mats can hold Mat objects ({matIndex}) or bare handles, returns how many were deleted
+    public static int deleteMats(ReadableArray mats) {
+        int numDeleted = 0;
+        for (int i=0;i < mats.size();i++) {
+            int matIndex = mats.getType(i) == ReadableType.Map ? mats.getMap(i).getInt("matIndex") : mats.getInt(i);
+            Object mat = freeSlot(matIndex);
+            if (mat != null) {
+                releaseMat(mat, true);
+                numDeleted++;
+            }
         }
-        mats.clear();
+        return numDeleted;
     }
 }
@@ -0,0 +1,144 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Range;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ *  Released Mats kept by (rows, cols, type) so the next Mat of the same shape reuses the native
+ *  buffer instead of freeing one and allocating another, which matters for per frame transposes
+ *  and for JS code that creates and deletes same sized Mats in a loop.  Retention is bounded to
+ *  maxPerKey Mats of each shape and maxBytes in total, the least recently used shapes are released
+ *  first.  Only plain continuous Mats that own their whole buffer are kept, anything else is just
+ *  released.  A Mat handed out by acquire has undefined contents like new Mat(rows, cols, type).
+ *
+ *  Only the native buffer is reused, never the Java Mat passed to recycle: the pool keeps a new
+ *  header on the buffer and releases the caller's Mat.  Code still holding the recycled Mat (say a
+ *  worker that looked up a handle just before it was deleted) then finds it empty instead of
+ *  silently writing into the next owner's Mat.
+ */
+class MatPool {
+
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+    public static final int DEFAULT_MAX_PER_KEY = 4;
+
+    private static final MatPool matPool = new MatPool();
+
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private int maxPerKey = DEFAULT_MAX_PER_KEY;
+    private long pooledBytes = 0;
+
+    // access ordered so the eldest entry is the least recently used shape
+    private final LinkedHashMap<Long, ArrayDeque<Mat>> pool = new LinkedHashMap<Long, ArrayDeque<Mat>>(16, 0.75f, true);
+
+    private MatPool() {
+    }
+
+    // static method to create instance of Singleton class
+    public static MatPool getInstance() {
+        return matPool;
+    }
+
+    // type fits in 12 bits and cols in 22, which covers every size OpenCV can allocate on a phone
+    private static long keyFor(int rows, int cols, int type) {
+        return ((long)rows << 34) | ((long)(cols & 0x3fffff) << 12) | (type & 0xfff);
+    }
+
+    private static long bytesFor(int rows, int cols, int type) {
+        return (long)rows * cols * CvType.ELEM_SIZE(type);
+    }
+
+    public Mat acquire(int rows, int cols, int type) {
+        synchronized (this) {
+            ArrayDeque<Mat> mats = pool.get(keyFor(rows, cols, type));
+            if (mats != null && !mats.isEmpty()) {
+                pooledBytes -= bytesFor(rows, cols, type);
+                return mats.pop();
+            }
+        }
+        return new Mat(rows, cols, type);
+    }
+
+    // takes ownership of mat, it must not be used again by the caller
+    public void recycle(Mat mat) {
+        if (mat == null) {
+            return;
+        }
+        if (mat.getClass() != Mat.class || mat.empty() || mat.dims() > 2 || !mat.isContinuous() || mat.isSubmatrix()) {
+            mat.release();
+            return;
+        }
+        int rows = mat.rows();
+        int cols = mat.cols();
+        int type = mat.type();
+        long bytes = bytesFor(rows, cols, type);
+        synchronized (this) {
+            if (bytes <= maxBytes && maxPerKey > 0) {
+                Long key = keyFor(rows, cols, type);
+                ArrayDeque<Mat> mats = pool.get(key);
+                if (mats == null) {
+                    mats = new ArrayDeque<Mat>();
+                    pool.put(key, mats);
+                }
+                if (mats.size() < maxPerKey) {
+                    Mat pooled = new Mat(mat, Range.all());
+                    mat.release();
+                    mats.push(pooled);
+                    pooledBytes += bytes;
+                    trim(maxBytes);
+                    return;
+                }
+            }
+        }
+        mat.release();
+    }
+
+    // releases least recently used shapes until at most limit bytes are pooled
+    private void trim(long limit) {
+        Iterator<Map.Entry<Long, ArrayDeque<Mat>>> it = pool.entrySet().iterator();
+        while (pooledBytes > limit && it.hasNext()) {
+            ArrayDeque<Mat> mats = it.next().getValue();
+            while (!mats.isEmpty() && pooledBytes > limit) {
+                Mat mat = mats.pollLast();
+                pooledBytes -= bytesFor(mat.rows(), mat.cols(), mat.type());
+                mat.release();
+            }
+            if (mats.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void setLimits(long maxBytes, int maxPerKey) {
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxPerKey = Math.max(0, maxPerKey);
+        Iterator<ArrayDeque<Mat>> it = pool.values().iterator();
+        while (it.hasNext()) {
+            ArrayDeque<Mat> mats = it.next();
+            while (mats.size() > this.maxPerKey) {
+                Mat mat = mats.pollLast();
+                pooledBytes -= bytesFor(mat.rows(), mat.cols(), mat.type());
+                mat.release();
+            }
+            if (mats.isEmpty()) {
+                it.remove();
+            }
+        }
+        trim(this.maxBytes);
+    }
+
+    public synchronized void clear() {
+        trim(0);
+        pool.clear();
+    }
+
+    public synchronized long pooledBytes() {
+        return pooledBytes;
+    }
+}
@@ -56,18 +56,41 @@ public class RNOpencv3Module extends ReactContextBaseJavaModule {
 
     private static final String TAG = RNOpencv3Module.class.getSimpleName();
 
-    private boolean cascadeStoredInCache = false;
-
     static {
         System.loadLibrary("opencv_java3");
     }
 
     private ReactApplicationContext reactContext;
 
+    private final CvInvokeExecutor invokeExecutor = new CvInvokeExecutor();
+    private final CvInvokeExecutor.Callbacks invokeCallbacks = new CvInvokeExecutor.Callbacks() {
+        @Override
+        public void send(WritableArray retArr, String callback, int dstMatIndex) {
+            sendCallbackData(retArr, callback, dstMatIndex);
+        }
+    };
+
+    private final ImageBatchQueue imageBatchQueue;
+
 
     public RNOpencv3Module(ReactApplicationContext reactContext) {
         super(reactContext);
         this.reactContext = reactContext;
+        this.imageBatchQueue = new ImageBatchQueue(new ImageBatchQueue.Listener() {
+            @Override
+            public void onItem(WritableMap item) {
+                RNOpencv3Module.this.reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                        .emit("onImageBatchItem", item);
+            }
+        });
+
+        // build the reflection indexes off the main thread so the first invoke is not slowed down
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                CvInvoke.prewarm();
+            }
+        }, "RNOpencv3-prewarm").start();
     }
 
     @Override
@@ -75,13 +98,19 @@ public class RNOpencv3Module extends ReactContextBaseJavaModule {
         return "RNOpencv3";
     }
 
+    @Override
+    public void onCatalystInstanceDestroy() {
+        invokeExecutor.shutdown();
+        imageBatchQueue.shutdown();
+        MatPool.getInstance().clear();
+    }
+
     private void MakeAToast(String message) {
         Toast.makeText(reactContext, message, Toast.LENGTH_LONG).show();
     }
 
     private File readClassifierFile(String cascadeFileLocation) {
         File cascadeFile = null;
-        cascadeStoredInCache = false;
         try {
             cascadeFile = new File(cascadeFileLocation);
             if(!cascadeFile.exists()){
@@ -90,18 +119,16 @@ public class RNOpencv3Module extends ReactContextBaseJavaModule {
             return cascadeFile;
         } catch (Exception e) {
             Log.e(TAG, "Failed to load cascade from specified location:" + e);
+            // the backup cascade is copied out of the assets once and kept in the cache dir
+            cascadeFile = new File(reactContext.getCacheDir(), "cascade.xml");
+            if (cascadeFile.exists()) {
+                return cascadeFile;
+            }
             try {
                 // load backup cascade file from assets
                 InputStream is = reactContext.getAssets().open("cascade.xml");
-                
-                if (is == null) {
-                    Log.e(TAG, "Input stream is nullified!");
-                }
-
-                File cacheDir = reactContext.getCacheDir();
-
-                cascadeFile = new File(cacheDir, "cascade.xml");
-                FileOutputStream os = new FileOutputStream(cascadeFile);
+                File tmpFile = new File(reactContext.getCacheDir(), "cascade.xml.tmp");
+                FileOutputStream os = new FileOutputStream(tmpFile);
 
                 byte[] buffer = new byte[4096];
                 int bytesRead;
@@ -111,7 +138,9 @@ public class RNOpencv3Module extends ReactContextBaseJavaModule {
                 is.close();
                 os.close();
 
-                cascadeStoredInCache = true;
+                if (!tmpFile.renameTo(cascadeFile)) {
+                    throw new IOException("Unable to move backup cascade into " + cascadeFile.getAbsolutePath());
+                }
                 return cascadeFile;
             } catch (java.io.IOException ioe) {
                 Log.e(TAG, "Failed to load backup cascade. IOException thrown: " + ioe.getMessage());
@@ -120,6 +149,10 @@ public class RNOpencv3Module extends ReactContextBaseJavaModule {
         }
     }
 
+    private CascadeClassifier classifierFor(String cascadeFileLocation) {
+        return CascadeCache.getInstance().get(readClassifierFile(cascadeFileLocation));
+    }
+
     @ReactMethod
     public void drawLine(ReadableMap inMat, ReadableMap pt1, ReadableMap pt2, ReadableMap scalarVal, int thickness) {
         int matIndex = inMat.getInt("matIndex");
@@ -152,6 +185,30 @@ public class RNOpencv3Module extends ReactContextBaseJavaModule {
         FileUtils.getInstance().imageToMat(inPath, promise);
     }
 
+    // options: maxDimension, region and grayscale, see FileUtils.decodeImage
+    @ReactMethod
+    public void imageToMatWithOptions(String inPath, ReadableMap options, final Promise promise) {
+        FileUtils.getInstance().imageToMat(inPath, options, promise);
+    }
+
+    // Imgcodecs based I/O that keeps the channel count and depth of the image, see ImageCodecs
+    @ReactMethod
+    public void imreadToMat(String inPath, ReadableMap options, final Promise promise) {
+        FileUtils.getInstance().imreadToMat(inPath, options, promise);
+    }
+
+    @ReactMethod
+    public void imdecodeToMat(String base64Data, ReadableMap options, final Promise promise) {
+        FileUtils.getInstance().imdecodeToMat(base64Data, options, promise);
+    }
+
+    @ReactMethod
+    public void matToImageNative(ReadableMap srcMat, String outPath, ReadableMap options, final Promise promise) {
+        int matIndex = srcMat.getInt("matIndex");
+        Mat mat = (Mat) MatManager.getInstance().matAtIndex(matIndex);
+        FileUtils.getInstance().matToImageNative(mat, outPath, options, promise);
+    }
+
     @ReactMethod
     public void matToImage(ReadableMap srcMat, String outPath, final Promise promise) {
         int matIndex = srcMat.getInt("matIndex");
@@ -159,6 +216,49 @@ public class RNOpencv3Module extends ReactContextBaseJavaModule {
         FileUtils.getInstance().matToImage(mat, outPath, promise);
     }
 
+    @ReactMethod
+    public void matToImageWithOptions(ReadableMap srcMat, String outPath, ReadableMap options, final Promise promise) {
+        int matIndex = srcMat.getInt("matIndex");
+        Mat mat = (Mat) MatManager.getInstance().matAtIndex(matIndex);
+        FileUtils.getInstance().matToImage(mat, outPath, options, promise);
+    }
+
+    @ReactMethod
+    public void saveMat(ReadableMap srcMat, String outPath, final Promise promise) {
+        int matIndex = srcMat.getInt("matIndex");
+        Mat mat = (Mat) MatManager.getInstance().matAtIndex(matIndex);
+        FileUtils.getInstance().saveMat(mat, outPath, promise);
+    }
+
+    @ReactMethod
+    public void loadMat(String inPath, final Promise promise) {
+        FileUtils.getInstance().loadMat(inPath, promise);
+    }
+
+    // encodes in memory and resolves {width, height, size, data} with data in base64
+    @ReactMethod
+    public void matToBase64(ReadableMap srcMat, String format, ReadableMap options, final Promise promise) {
+        int matIndex = srcMat.getInt("matIndex");
+        Mat mat = (Mat) MatManager.getInstance().matAtIndex(matIndex);
+        FileUtils.getInstance().matToBase64(mat, format, options, promise);
+    }
+
+    // batches run on the I/O threads, per image results arrive as onImageBatchItem events
+    @ReactMethod
+    public void importImages(ReadableArray inPaths, ReadableMap options, final Promise promise) {
+        imageBatchQueue.importImages(inPaths, options, promise);
+    }
+
+    @ReactMethod
+    public void exportImages(ReadableArray mats, ReadableArray outPaths, ReadableMap options, final Promise promise) {
+        imageBatchQueue.exportImages(mats, outPaths, options, promise);
+    }
+
+    @ReactMethod
+    public void cancelImageBatch(String batchId, final Promise promise) {
+        promise.resolve(imageBatchQueue.cancel(batchId));
+    }
+
     @ReactMethod
     public void invokeMethods(ReadableMap cvInvokeMap) {
         CvInvoke invoker = new CvInvoke();
@@ -168,51 +268,91 @@ public class RNOpencv3Module extends ReactContextBaseJavaModule {
         sendCallbackData(responseArr, lastCall, dstMatIndex);
     }
 
+    // compiles an invoke map once so it can be run many times through invokePipeline
+    @ReactMethod
+    public void compileInvokeMethods(ReadableMap cvInvokeMap, final Promise promise) {
+        try {
+            int pipelineIndex = CvPipeline.register(CvPipeline.compile(cvInvokeMap));
+            WritableNativeMap result = new WritableNativeMap();
+            result.putInt("pipelineIndex", pipelineIndex);
+            promise.resolve(result);
+        } catch (Exception ex) {
+            promise.reject("EINVAL", ex.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void invokePipeline(int pipelineIndex) {
+        CvPipeline pipeline = CvPipeline.pipelineAtIndex(pipelineIndex);
+        if (pipeline == null) {
+            Log.e(TAG, "No compiled pipeline for index " + pipelineIndex);
+            return;
+        }
+        synchronized (pipeline) {
+            WritableArray responseArr = pipeline.run(null, null);
+            sendCallbackData(responseArr, pipeline.lastCallback(), pipeline.lastDstMatIndex());
+        }
+    }
+
+    @ReactMethod
+    public void deletePipeline(int pipelineIndex) {
+        CvPipeline.deletePipeline(pipelineIndex);
+    }
+
+    // resolves the methods used by an invoke map before it is first run e.g. per camera frame
+    @ReactMethod
+    public void prewarmInvokeMethods(ReadableMap cvInvokeMap) {
+        CvInvoke.prewarm(cvInvokeMap);
+    }
+
     // IMPT NOTE: retArr can either be one single array or an array of arrays ...
     // TODO: move this into RNOpencv3Util class ...
     public void sendCallbackData(WritableArray retArr, String callback, int dstMatIndex) {
-        if (callback != null && !callback.equals("") && dstMatIndex >= 0 && dstMatIndex < 1000) {
+        if (callback != null && !callback.equals("") && dstMatIndex >= 0) {
             WritableMap response = new WritableNativeMap();
             response.putArray("payload", retArr);
             reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
                     .emit(callback, response);
         } else {
-            // not necessarily error condition unless dstMatIndex >= 1000
-            if (dstMatIndex == 1000) {
+            // not necessarily error condition unless dstMatIndex is one of the CvInvoke error codes
+            if (dstMatIndex == CvInvoke.SECURITY_EXCEPTION) {
                 Log.e(TAG, "SecurityException thrown attempting to invoke method.  Check your method name and parameters and make sure they are correct.");
-            } else if (dstMatIndex == 1001) {
+            } else if (dstMatIndex == CvInvoke.ILLEGAL_ACCESS_EXCEPTION) {
                 Log.e(TAG, "IllegalAccessException thrown attempting to invoke method.  Check your method name and parameters and make sure they are correct.");
-            } else if (dstMatIndex == 1002) {
+            } else if (dstMatIndex == CvInvoke.INVOCATION_TARGET_EXCEPTION) {
                 Log.e(TAG, "InvocationTargetException thrown attempting to invoke method.  Check your method name and parameters and make sure they are correct.");
             }
         }
     }
 
-    private String getPartJSON(Mat dFace, String partKey, Rect part) {
-
-        StringBuffer sb = new StringBuffer();
-        if (partKey != null) {
-            sb.append(",\"" + partKey + "\":");
-        }
-
-        double widthToUse = dFace.cols();
-        double heightToUse = dFace.rows();
-
-        double X0 = part.tl().x;
-        double Y0 = part.tl().y;
-        double X1 = part.br().x;
-        double Y1 = part.br().y;
-
-        double x = X0 / widthToUse;
-        double y = Y0 / heightToUse;
-        double w = (X1 - X0) / widthToUse;
-        double h = (Y1 - Y0) / heightToUse;
-
-        sb.append("{\"x\":" + x + ",\"y\":" + y + ",\"width\":" + w + ",\"height\":" + h);
-        if (partKey != null) {
-            sb.append("}");
+    // detections are normalized to the image size, either as {x, y, width, height, id} maps or
+    // packed as x0, y0, w0, h0, x1, y1, ... numbers
+    private WritableArray detectionsArray(Rect[] objectsArray, Mat in, boolean packed) {
+        WritableArray detections = new WritableNativeArray();
+        double widthToUse = in.cols();
+        double heightToUse = in.rows();
+        for (int i = 0; i < objectsArray.length; i++) {
+            Rect part = objectsArray[i];
+            double x = part.x / widthToUse;
+            double y = part.y / heightToUse;
+            double w = part.width / widthToUse;
+            double h = part.height / heightToUse;
+            if (packed) {
+                detections.pushDouble(x);
+                detections.pushDouble(y);
+                detections.pushDouble(w);
+                detections.pushDouble(h);
+            } else {
+                WritableMap detection = new WritableNativeMap();
+                detection.putDouble("x", x);
+                detection.putDouble("y", y);
+                detection.putDouble("width", w);
+                detection.putDouble("height", h);
+                detection.putString("id", "" + i);
+                detections.pushMap(detection);
+            }
         }
-        return sb.toString();
+        return detections;
     }
 
     @ReactMethod
@@ -232,6 +372,63 @@ public class RNOpencv3Module extends ReactContextBaseJavaModule {
         (new CvInvoke()).invokeCvMethod(in, func, params, out);
     }
 
+    // result of an asynchronous invoke, the payload goes to the callback event if there is one
+    private WritableMap invokeResult(WritableArray retArr, String callback, int dstMatIndex) throws Exception {
+        return CvInvokeExecutor.invokeResult(retArr, callback, dstMatIndex, new WritableNativeMap(), invokeCallbacks);
+    }
+
+    // asynchronous variants run on the invoke executor, see CvInvokeExecutor for the options
+    @ReactMethod
+    public void invokeMethodsAsync(final ReadableMap cvInvokeMap, ReadableMap options, final Promise promise) {
+        invokeExecutor.submit(options, new CvInvokeExecutor.Work() {
+            @Override
+            public Object run() throws Exception {
+                CvInvoke invoker = new CvInvoke();
+                WritableArray responseArr = invoker.parseInvokeMap(cvInvokeMap);
+                return invokeResult(responseArr, invoker.callback, invoker.dstMatIndex);
+            }
+        }, promise);
+    }
+
+    @ReactMethod
+    public void invokeMethodAsync(final String func, final ReadableMap params, ReadableMap options, final Promise promise) {
+        invokeInOutMethodAsync(null, func, params, null, options, promise);
+    }
+
+    @ReactMethod
+    public void invokeInOutMethodAsync(final String in, final String func, final ReadableMap params, final String out,
+                                       ReadableMap options, final Promise promise) {
+        invokeExecutor.submit(options, new CvInvokeExecutor.Work() {
+            @Override
+            public Object run() throws Exception {
+                int dstMatIndex = (new CvInvoke()).invokeCvMethod(in, func, params, out);
+                return invokeResult(null, null, dstMatIndex);
+            }
+        }, promise);
+    }
+
+    @ReactMethod
+    public void invokePipelineAsync(final int pipelineIndex, ReadableMap options, final Promise promise) {
+        invokeExecutor.submit(options, new CvInvokeExecutor.Work() {
+            @Override
+            public Object run() throws Exception {
+                CvPipeline pipeline = CvPipeline.pipelineAtIndex(pipelineIndex);
+                if (pipeline == null) {
+                    throw new Exception("No compiled pipeline for index " + pipelineIndex);
+                }
+                synchronized (pipeline) {
+                    WritableArray responseArr = pipeline.run(null, null);
+                    return invokeResult(responseArr, pipeline.lastCallback(), pipeline.lastDstMatIndex());
+                }
+            }
+        }, promise);
+    }
+
+    @ReactMethod
+    public void cancelInvoke(String requestId, final Promise promise) {
+        promise.resolve(invokeExecutor.cancel(requestId));
+    }
+
     private void resolveMatPromise(int matIndex, int rows, int cols, int cvtype, final Promise promise) {
         WritableNativeMap result = new WritableNativeMap();
         result.putInt("rows", rows);
@@ -266,6 +463,84 @@ public class RNOpencv3Module extends ReactContextBaseJavaModule {
         promise.resolve(MatManager.getInstance().getMatData(mat.getInt("matIndex"), rownum, colnum));
     }
 
+    @ReactMethod
+    public void getMatRegionData(ReadableMap mat, ReadableMap region, final Promise promise) {
+        try {
+            promise.resolve(MatManager.getInstance().getMatRegionData(mat.getInt("matIndex"), region));
+        } catch (IllegalArgumentException ex) {
+            promise.reject("EINVAL", ex.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void putRegion(ReadableMap mat, ReadableMap region, ReadableArray data, final Promise promise) {
+        try {
+            MatManager.getInstance().putRegion(mat.getInt("matIndex"), region, data);
+            promise.resolve(null);
+        } catch (IllegalArgumentException ex) {
+            promise.reject("EINVAL", ex.getMessage());
+        }
+    }
+
+    // same data as getMatData but as base64 of the raw little endian values in the Mat's own depth
+    @ReactMethod
+    public void getMatDataBase64(ReadableMap mat, int rownum, int colnum, final Promise promise) {
+        Mat dMat = (Mat) MatManager.getInstance().matAtIndex(mat.getInt("matIndex"));
+        if (dMat == null) {
+            promise.reject("EINVAL", "Mat has been deleted or was never created.");
+            return;
+        }
+        try {
+            WritableNativeMap result = new WritableNativeMap();
+            result.putInt("rows", dMat.rows());
+            result.putInt("cols", dMat.cols());
+            result.putInt("channels", dMat.channels());
+            result.putInt("CvType", dMat.type());
+            result.putInt("depth", CvType.depth(dMat.type()));
+            result.putString("data", MatBuffers.toBase64(dMat, rownum, colnum));
+            promise.resolve(result);
+        } catch (IllegalArgumentException ex) {
+            promise.reject("EINVAL", ex.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void getMatRegionBase64(ReadableMap mat, ReadableMap region, final Promise promise) {
+        Mat dMat = (Mat) MatManager.getInstance().matAtIndex(mat.getInt("matIndex"));
+        if (dMat == null) {
+            promise.reject("EINVAL", "Mat has been deleted or was never created.");
+            return;
+        }
+        try {
+            Mat roi = MatBuffers.region(dMat, region);
+            WritableNativeMap result = new WritableNativeMap();
+            result.putInt("rows", roi.rows());
+            result.putInt("cols", roi.cols());
+            result.putInt("channels", roi.channels());
+            result.putInt("CvType", roi.type());
+            result.putInt("depth", CvType.depth(roi.type()));
+            result.putString("data", MatBuffers.toBase64(roi, 0, 0));
+            roi.release();
+            promise.resolve(result);
+        } catch (IllegalArgumentException ex) {
+            promise.reject("EINVAL", ex.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void putBase64(ReadableMap mat, int rownum, int colnum, String data) {
+        Mat dMat = (Mat) MatManager.getInstance().matAtIndex(mat.getInt("matIndex"));
+        if (dMat == null) {
+            Log.e(TAG, "putBase64 called on a deleted Mat");
+            return;
+        }
+        try {
+            MatBuffers.fromBase64(dMat, rownum, colnum, data);
+        } catch (IllegalArgumentException ex) {
+            Log.e(TAG, "putBase64 failed: " + ex.getMessage());
+        }
+    }
+
     // TODO: not sure if this code should be moved to MatManager
     @ReactMethod
     public void setTo(ReadableMap mat, ReadableMap cvscalar) {
@@ -293,58 +568,146 @@ public class RNOpencv3Module extends ReactContextBaseJavaModule {
         MatManager.getInstance().deleteAllMats();
     }
 
+    // one bridge call for many Mats, see MatManager.createMats for the specs, options.scopeId
+    // adds the new Mats to a scope from openMatScope
     @ReactMethod
-    public void useCascadeOnImage(String cascadeClassifier, ReadableMap mat, final Promise promise) {
-        File cascadeFile = readClassifierFile(cascadeClassifier);
-        if (cascadeFile != null) {
-            CascadeClassifier classifier = new CascadeClassifier(cascadeFile.getAbsolutePath());
-            if (classifier.empty()) {
-                classifier = null;
-                promise.reject("Create Event error", "Cascade file doesn't exist", new Exception());
-            } else {
-                Log.i(TAG, "Loaded classifier from " + cascadeFile.getAbsolutePath());
+    public void createMats(ReadableArray specs, ReadableMap options, final Promise promise) {
+        try {
+            int scopeId = (options != null && options.hasKey("scopeId")) ? options.getInt("scopeId") : 0;
+            promise.resolve(MatManager.getInstance().createMats(specs, scopeId));
+        } catch (Exception ex) {
+            promise.reject("EINVAL", ex.getMessage());
+        }
+    }
+
+    @ReactMethod
+    public void deleteMatsBatch(ReadableArray mats, final Promise promise) {
+        promise.resolve(MatManager.getInstance().deleteMats(mats));
+    }
+
+    @ReactMethod
+    public void openMatScope(final Promise promise) {
+        promise.resolve(MatManager.getInstance().openScope());
+    }
+
+    @ReactMethod
+    public void closeMatScope(int scopeId, final Promise promise) {
+        promise.resolve(MatManager.getInstance().closeScope(scopeId));
+    }
+
+    @ReactMethod
+    // see CascadeDetector for the detection options
+    public void useCascadeOnImage(String cascadeClassifier, ReadableMap mat, ReadableMap options, final Promise promise) {
+        CascadeClassifier classifier = classifierFor(cascadeClassifier);
+        if (classifier == null) {
+            promise.reject("Create Event error", "Cascade file doesn't exist", new Exception());
+            return;
+        }
+
+        int srcMatIndex = mat.getInt("matIndex");
+
+        Mat in = (Mat) MatManager.getInstance().matAtIndex(srcMatIndex);
+
+        if (in == null) {
+            promise.resolve(new WritableNativeArray());
+            return;
+        }
+        try {
+            promise.resolve(detectionsArray(CascadeDetector.detect(classifier, in, options), in, false));
+        } catch (IllegalArgumentException ex) {
+            promise.reject("EINVAL", ex.getMessage());
+        }
+    }
+
+    // runs one cascade over several Mats and resolves an array with the detections of each,
+    // an image whose Mat is missing gets an empty array, options.packed selects packed results
+    @ReactMethod
+    public void useCascadeOnImages(String cascadeClassifier, ReadableArray mats, ReadableMap options, final Promise promise) {
+        CascadeClassifier classifier = classifierFor(cascadeClassifier);
+        if (classifier == null) {
+            promise.reject("Create Event error", "Cascade file doesn't exist", new Exception());
+            return;
+        }
+        boolean packed = options != null && options.hasKey("packed") && options.getBoolean("packed");
+        WritableArray results = new WritableNativeArray();
+        for (int i = 0; i < mats.size(); i++) {
+            Mat in = (Mat) MatManager.getInstance().matAtIndex(mats.getMap(i).getInt("matIndex"));
+            if (in == null) {
+                results.pushArray(new WritableNativeArray());
+                continue;
             }
-            if(cascadeStoredInCache){
-                 cascadeFile.delete();
+            try {
+                results.pushArray(detectionsArray(CascadeDetector.detect(classifier, in, options), in, packed));
+            } catch (IllegalArgumentException ex) {
+                promise.reject("EINVAL", ex.getMessage());
+                return;
             }
+        }
+        promise.resolve(results);
+    }
+
+    // loads a cascade into the classifier cache ahead of the first detection
+    @ReactMethod
+    public void preloadCascade(String cascadeClassifier, final Promise promise) {
+        promise.resolve(classifierFor(cascadeClassifier) != null);
+    }
 
-            int srcMatIndex = mat.getInt("matIndex");
+    @ReactMethod
+    public void evictCascade(String cascadeClassifier) {
+        CascadeCache.getInstance().evict(cascadeClassifier);
+    }
 
-            Mat in = (Mat) MatManager.getInstance().matAtIndex(srcMatIndex);
+    @ReactMethod
+    public void clearCascadeCache() {
+        CascadeCache.getInstance().clear();
+    }
 
-            MatOfRect objects = new MatOfRect();
-            if (classifier != null && in != null) {
-                classifier.detectMultiScale(in, objects);
+    @ReactMethod
+    public void setCascadeCacheSize(int maxEntries) {
+        CascadeCache.getInstance().setMaxEntries(maxEntries);
+    }
 
-            }
 
-            Rect[] objectsArray = objects.toArray();
-
-            String resultString = "";
-            if (objectsArray.length > 0) {
-                StringBuffer sb = new StringBuffer();
-                sb.append("{\"objects\":[");
-                for (int i = 0; i < objectsArray.length; i++) {
-                    sb.append(getPartJSON(in, null, objectsArray[i]));
-                    String id = "" + i;
-                    sb.append(",\"id\":\"" + id + "\"");
-                    if (i != (objectsArray.length - 1)) {
-                        sb.append("},");
-                    } else {
-                        sb.append("}");
-                    }
-                }
-                sb.append("]}");
-                resultString = sb.toString();
-            } else{
-                resultString = "{\"objects\":[]}";
-            }
-            promise.resolve(resultString);
+    // bounds the buffers MatPool keeps for reuse, see MatPool
+    @ReactMethod
+    public void setMatPoolLimits(double maxBytes, int maxPerShape) {
+        MatPool.getInstance().setLimits((long)maxBytes, maxPerShape);
+    }
 
-        }
-        promise.reject("Create Event error", "Cascade file doesn't exist", new Exception());
+    @ReactMethod
+    public void clearMatPool() {
+        MatPool.getInstance().clear();
+    }
+
+    // {count, bytes, budget, pooledBytes, top} with the topN largest live Mats, see MatManager.getMemoryStats
+    @ReactMethod
+    public void getMatMemoryStats(int topN, final Promise promise) {
+        promise.resolve(MatManager.getInstance().getMemoryStats(topN));
     }
 
+    @ReactMethod
+    public void setMatTag(ReadableMap mat, String tag) {
+        int matIndex = mat.getInt("matIndex");
+        MatManager.getInstance().setTag(matIndex, tag);
+    }
+
+    // soft budget in bytes, 0 turns it off, going over emits onMatMemoryWarning and with the
+    // evictScratch option also deletes the oldest Mats tagged "scratch"
+    @ReactMethod
+    public void setMatMemoryBudget(double budgetBytes, ReadableMap options) {
+        boolean evictScratch = options != null && options.hasKey("evictScratch") && options.getBoolean("evictScratch");
+        MatManager.getInstance().setBudget((long)budgetBytes, evictScratch, new MatManager.BudgetListener() {
+            @Override
+            public void onBudgetExceeded(long trackedBytes, long budgetBytes, int liveCount) {
+                WritableMap response = new WritableNativeMap();
+                response.putDouble("bytes", trackedBytes);
+                response.putDouble("budget", budgetBytes);
+                response.putInt("count", liveCount);
+                reactContext.getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                        .emit("onMatMemoryWarning", response);
+            }
+        });
+    }
 
     @ReactMethod
     public void MatOfInt(int lomatint, int himatint, final Promise promise) {
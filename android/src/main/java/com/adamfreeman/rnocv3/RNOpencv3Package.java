@@ -13,8 +13,7 @@ import com.facebook.react.bridge.JavaScriptModule;
 public class RNOpencv3Package implements ReactPackage {
     @Override
     public List<NativeModule> createNativeModules(ReactApplicationContext reactContext) {
-      // return Arrays.<NativeModule>asList(new RNOpencv3Module(reactContext), new CvCameraModule(reactContext));
-      return Arrays.<NativeModule>asList(new RNOpencv3Module(reactContext));
+      return Arrays.<NativeModule>asList(new RNOpencv3Module(reactContext), new CvCameraModule(reactContext));
     }
 
     // Deprecated from RN 0.47
@@ -24,10 +23,8 @@ public class RNOpencv3Package implements ReactPackage {
 
     @Override
     public List<ViewManager> createViewManagers(ReactApplicationContext reactContext) {
-      return Collections.emptyList();
-
-      // return Collections.<ViewManager>singletonList(
-      //         new CvCameraViewManager()
-      // );
+      return Collections.<ViewManager>singletonList(
+              new CvCameraViewManager()
+      );
     }
 }
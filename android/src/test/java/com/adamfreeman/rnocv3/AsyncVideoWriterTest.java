@@ -0,0 +1,132 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.PromiseImpl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+ *  Records MJPG, which OpenCV encodes itself, so it works with the desktop natives.  The promise
+ *  is a PromiseImpl whose resolve hands the result map to a callback.
+ */
+public class AsyncVideoWriterTest {
+
+    private static final long FRAME_NANOS = 1000000000L / 30;
+
+    private File out;
+
+    private static final class Settled {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile JavaOnlyMap result;
+        volatile String error;
+
+        PromiseImpl promise() {
+            return new PromiseImpl(new Callback() {
+                @Override
+                public void invoke(Object... args) {
+                    result = (JavaOnlyMap)args[0];
+                    done.countDown();
+                }
+            }, new Callback() {
+                @Override
+                public void invoke(Object... args) {
+                    error = String.valueOf(args[1]);
+                    done.countDown();
+                }
+            });
+        }
+    }
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        out = File.createTempFile("recording", ".avi");
+    }
+
+    @After
+    public void tearDown() {
+        out.delete();
+    }
+
+    // returns the number of frames dropped from the recording
+    private static int record(AsyncVideoWriter writer, int numFrames) throws InterruptedException {
+        int dropped = 0;
+        for (int i=0;i < numFrames;i++) {
+            Mat frame = FrameStreamerTest.pattern(24, 32, i);
+            if (!writer.offer(frame, 1000000000L + i * FRAME_NANOS)) {
+                dropped++;
+            }
+            frame.release();
+            Thread.sleep(5);
+        }
+        return dropped;
+    }
+
+    @Test
+    public void recordsAtTheMeasuredRate() throws Exception {
+        AsyncVideoWriter writer = new AsyncVideoWriter(out.getAbsolutePath(), -1, null);
+        int dropped = record(writer, 20);
+        Settled settled = new Settled();
+        writer.stop(settled.promise(), new JavaOnlyMap());
+
+        assertTrue(settled.done.await(10, TimeUnit.SECONDS));
+        assertNull(settled.error);
+        JavaOnlyMap result = settled.result;
+        assertNotNull(result);
+        assertEquals(out.getAbsolutePath(), result.getString("uri"));
+        assertEquals(32, result.getInt("width"));
+        assertEquals(24, result.getInt("height"));
+        assertEquals(30.0, result.getDouble("fps"), 0.5);
+        assertEquals(dropped, result.getDouble("dropped"), 0.0);
+        // frames dropped while the VideoWriter opens are made up by repeating the frame before
+        assertEquals(20.0, result.getDouble("frames"), 0.0);
+        assertTrue(out.length() > 0);
+    }
+
+    @Test
+    public void rotationSwapsTheRecordedSize() throws Exception {
+        AsyncVideoWriter writer = new AsyncVideoWriter(out.getAbsolutePath(), Core.ROTATE_90_CLOCKWISE,
+            JavaOnlyMap.of("fps", 15.0));
+        record(writer, 8);
+        Settled settled = new Settled();
+        writer.stop(settled.promise(), new JavaOnlyMap());
+
+        assertTrue(settled.done.await(10, TimeUnit.SECONDS));
+        assertNull(settled.error);
+        assertEquals(24, settled.result.getInt("width"));
+        assertEquals(32, settled.result.getInt("height"));
+        assertEquals(15.0, settled.result.getDouble("fps"), 0.0);
+    }
+
+    @Test
+    public void stopWithoutPromiseStopsTakingFrames() throws Exception {
+        AsyncVideoWriter writer = new AsyncVideoWriter(out.getAbsolutePath(), -1, null);
+        record(writer, 3);
+        writer.stop(null, null);
+        // frames offered after stop are not taken
+        Mat frame = FrameStreamerTest.pattern(24, 32, 0);
+        assertFalse(writer.offer(frame, 2000000000L));
+        frame.release();
+    }
+}
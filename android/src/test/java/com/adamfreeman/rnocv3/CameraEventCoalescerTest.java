@@ -0,0 +1,132 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.WritableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/*
+ *  Event coalescing for the camera.  JavaOnlyMaps stand in for the native event maps.
+ */
+public class CameraEventCoalescerTest {
+
+    static final class RecordingSink implements CameraEventCoalescer.Sink {
+        final List<String> names = new ArrayList<String>();
+        final List<WritableMap> bodies = new ArrayList<WritableMap>();
+
+        @Override
+        public WritableMap createMap() {
+            return new JavaOnlyMap();
+        }
+
+        @Override
+        public synchronized void emit(String eventName, WritableMap body) {
+            names.add(eventName);
+            bodies.add(body);
+            notifyAll();
+        }
+
+        synchronized int count(String eventName) {
+            int count = 0;
+            for (String name : names) {
+                if (name.equals(eventName)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        synchronized List<WritableMap> bodies(String eventName) {
+            List<WritableMap> found = new ArrayList<WritableMap>();
+            for (int i=0;i < names.size();i++) {
+                if (names.get(i).equals(eventName)) {
+                    found.add(bodies.get(i));
+                }
+            }
+            return found;
+        }
+
+        synchronized boolean await(String eventName, int count, long timeoutMs) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (count(eventName) < count) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+            return true;
+        }
+    }
+
+    private RecordingSink sink;
+    private CameraEventCoalescer events;
+
+    @Before
+    public void setUp() {
+        sink = new RecordingSink();
+        events = new CameraEventCoalescer(sink);
+    }
+
+    @After
+    public void tearDown() {
+        events.shutdown();
+    }
+
+    private static WritableMap body(String value) {
+        return JavaOnlyMap.of("payload", value);
+    }
+
+    @Test
+    public void frameSizeIsOnlySentWhenItChanges() {
+        assertTrue(events.frameSize(640, 480, -1));
+        assertFalse(events.frameSize(640, 480, -1));
+        assertFalse(events.frameSize(640, 480, -1));
+        assertEquals(1, sink.count("onFrameSize"));
+        assertEquals("{\"frameSize\":{\"frameWidth\":640.0,\"frameHeight\":480.0,\"rotation\":-1}}",
+            sink.bodies("onFrameSize").get(0).getString("payload"));
+
+        assertTrue(events.frameSize(640, 480, 0));
+        events.resetFrameSize();
+        assertTrue(events.frameSize(640, 480, 0));
+        assertEquals(3, sink.count("onFrameSize"));
+    }
+
+    @Test
+    public void eventsWithoutIntervalAreSentAtOnce() {
+        for (int i=0;i < 5;i++) {
+            events.emit("onPayload", body("p" + i));
+        }
+        assertEquals(5, sink.count("onPayload"));
+    }
+
+    @Test
+    public void burstIsCutToTheFirstAndTheNewestEvent() throws Exception {
+        events.setMinInterval("onFacesDetectedCv", 200);
+        WritableMap newest = body("c");
+        events.emit("onFacesDetectedCv", body("a"));
+        events.emit("onFacesDetectedCv", body("b"));
+        events.emit("onFacesDetectedCv", newest);
+        assertEquals(1, sink.count("onFacesDetectedCv"));
+
+        assertTrue(sink.await("onFacesDetectedCv", 2, 2000));
+        // nothing else was waiting
+        Thread.sleep(300);
+        List<WritableMap> sent = sink.bodies("onFacesDetectedCv");
+        assertEquals(2, sent.size());
+        assertEquals("a", sent.get(0).getString("payload"));
+        assertSame(newest, sent.get(1));
+    }
+}
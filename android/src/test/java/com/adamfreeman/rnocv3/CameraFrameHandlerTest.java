@@ -0,0 +1,165 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.PromiseImpl;
+import com.facebook.react.bridge.WritableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ *  The camera frame path without a camera: frames are fed to onFrame the way CvCameraView does
+ *  and the events come out of a recording sink.  Face detection needs cascade files and the
+ *  CvInvoke callbacks native arrays, so they are left to the device.
+ */
+public class CameraFrameHandlerTest {
+
+    private CameraEventCoalescerTest.RecordingSink sink;
+    private CameraFrameHandler handler;
+    private File dir;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        sink = new CameraEventCoalescerTest.RecordingSink();
+        handler = new CameraFrameHandler(sink, -1);
+        dir = File.createTempFile("camera", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        handler.release();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private Mat frame(long timestampNanos) {
+        Mat rgba = FrameStreamerTest.pattern(24, 32, (int)timestampNanos);
+        Mat gray = new Mat();
+        Core.extractChannel(rgba, gray, 0);
+        Mat shown = handler.onFrame(rgba, gray, timestampNanos);
+        gray.release();
+        return shown;
+    }
+
+    @Test
+    public void frameSizeIsSentOncePerSize() {
+        for (int i=0;i < 5;i++) {
+            frame(i);
+        }
+        assertEquals(1, sink.count("onFrameSize"));
+        assertEquals("{\"frameSize\":{\"frameWidth\":32.0,\"frameHeight\":24.0,\"rotation\":-1}}",
+            sink.bodies("onFrameSize").get(0).getString("payload"));
+
+        handler.setRotation(Core.ROTATE_90_CLOCKWISE);
+        frame(5);
+        assertEquals(2, sink.count("onFrameSize"));
+    }
+
+    @Test
+    public void overlayIsBlendedAndFrontCameraFlipped() {
+        Mat plain = FrameStreamerTest.pattern(24, 32, 1);
+        Mat overlay = new Mat(24, 32, CvType.CV_8UC4, new Scalar(5, 6, 7, 0));
+        handler.setOverlay(overlay);
+        handler.setCameraFacing(1);
+
+        Mat shown = frame(1);
+        Mat expected = new Mat();
+        Core.flip(plain, expected, 1);
+        Core.add(expected, overlay, expected);
+        byte[] shownBytes = new byte[24 * 32 * 4];
+        byte[] expectedBytes = new byte[24 * 32 * 4];
+        shown.get(0, 0, shownBytes);
+        expected.get(0, 0, expectedBytes);
+        assertArrayEquals(expectedBytes, shownBytes);
+    }
+
+    @Test
+    public void streamedFramesComeFromTheAnalysisThread() throws Exception {
+        handler.setFrameStreaming(JavaOnlyMap.of("format", "shared", "scale", 1.0, "fps", 0.0,
+            "path", new File(dir, "frame").getAbsolutePath()));
+        Mat shown = frame(1).clone();
+        assertTrue(sink.await("onCameraFrame", 1, 5000));
+
+        WritableMap event = sink.bodies("onCameraFrame").get(0);
+        assertEquals(32, event.getInt("width"));
+        Mat streamed = MatFiles.load(event.getString("uri"));
+        byte[] shownBytes = new byte[24 * 32 * 4];
+        byte[] streamedBytes = new byte[24 * 32 * 4];
+        shown.get(0, 0, shownBytes);
+        streamed.get(0, 0, streamedBytes);
+        assertArrayEquals(shownBytes, streamedBytes);
+        assertEquals(1, handler.analysisStats()[0]);
+    }
+
+    @Test
+    public void framesAreOnlyAnalyzedWhenSomethingNeedsThem() {
+        for (int i=0;i < 3;i++) {
+            frame(i);
+        }
+        assertEquals(0, handler.analysisStats()[0]);
+    }
+
+    @Test
+    public void recordsTheShownFrames() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final JavaOnlyMap[] result = new JavaOnlyMap[1];
+        File out = new File(dir, "video.avi");
+        handler.startRecording(JavaOnlyMap.of("filename", out.getAbsolutePath(), "fps", 30.0));
+        for (int i=0;i < 10;i++) {
+            frame(1000000000L + i * (1000000000L / 30));
+            Thread.sleep(5);
+        }
+        handler.stopRecording(new PromiseImpl(new Callback() {
+            @Override
+            public void invoke(Object... args) {
+                result[0] = (JavaOnlyMap)args[0];
+                done.countDown();
+            }
+        }, null));
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(out.getAbsolutePath(), result[0].getString("uri"));
+        assertEquals(32, result[0].getInt("width"));
+        assertEquals(24, result[0].getInt("height"));
+        assertTrue(result[0].getDouble("frames") > 0);
+        assertTrue(out.length() > 0);
+    }
+
+    @Test
+    public void eventIntervalsLimitTheEvents() {
+        handler.setEventIntervals(JavaOnlyMap.of("onFrameSize", 60000.0));
+        frame(1);
+        handler.setRotation(Core.ROTATE_180);
+        frame(2);
+        // the second size change waits for the interval
+        assertEquals(1, sink.count("onFrameSize"));
+    }
+}
@@ -0,0 +1,85 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import com.facebook.react.bridge.JavaOnlyArray;
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*
+ *  The result an asynchronous invoke resolves with.  The JavaOnly maps and arrays stand in for the
+ *  native ones, which can only be put into one map, so every payload must end up in exactly one.
+ */
+public class CvInvokeExecutorTest {
+
+    private static final class RecordingCallbacks implements CvInvokeExecutor.Callbacks {
+        final List<WritableArray> payloads = new ArrayList<WritableArray>();
+        final List<String> callbacks = new ArrayList<String>();
+
+        @Override
+        public void send(WritableArray retArr, String callback, int dstMatIndex) {
+            payloads.add(retArr);
+            callbacks.add(callback);
+        }
+    }
+
+    @Test
+    public void callbackGetsThePayloadAndThePromiseOnlyTheMatIndex() throws Exception {
+        RecordingCallbacks callbacks = new RecordingCallbacks();
+        JavaOnlyArray retArr = JavaOnlyArray.of(1.0, 2.0, 3.0);
+
+        WritableMap result = CvInvokeExecutor.invokeResult(retArr, "onContours", 4, new JavaOnlyMap(), callbacks);
+
+        assertEquals(1, callbacks.payloads.size());
+        assertSame(retArr, callbacks.payloads.get(0));
+        assertEquals("onContours", callbacks.callbacks.get(0));
+        assertEquals(4, result.getInt("matIndex"));
+        assertFalse(result.hasKey("payload"));
+    }
+
+    @Test
+    public void withoutCallbackThePromiseGetsThePayload() throws Exception {
+        RecordingCallbacks callbacks = new RecordingCallbacks();
+        JavaOnlyArray retArr = JavaOnlyArray.of(5.0);
+
+        WritableMap result = CvInvokeExecutor.invokeResult(retArr, "", 2, new JavaOnlyMap(), callbacks);
+
+        assertTrue(callbacks.payloads.isEmpty());
+        assertEquals(2, result.getInt("matIndex"));
+        assertSame(retArr, result.getArray("payload"));
+    }
+
+    @Test
+    public void noCallbackEventWithoutAResultMat() throws Exception {
+        RecordingCallbacks callbacks = new RecordingCallbacks();
+        WritableMap result = CvInvokeExecutor.invokeResult(null, "onDone", -1, new JavaOnlyMap(), callbacks);
+
+        assertTrue(callbacks.payloads.isEmpty());
+        assertEquals(-1, result.getInt("matIndex"));
+        assertFalse(result.hasKey("payload"));
+    }
+
+    @Test
+    public void invokeErrorsReject() {
+        RecordingCallbacks callbacks = new RecordingCallbacks();
+        try {
+            CvInvokeExecutor.invokeResult(JavaOnlyArray.of(), "onDone", CvInvoke.INVOCATION_TARGET_EXCEPTION,
+                new JavaOnlyMap(), callbacks);
+            fail("expected the invoke error to be thrown");
+        } catch (Exception ex) {
+            assertTrue(ex.getMessage().contains(String.valueOf(CvInvoke.INVOCATION_TARGET_EXCEPTION)));
+        }
+        assertTrue(callbacks.payloads.isEmpty());
+    }
+}
@@ -0,0 +1,131 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.ReadableMap;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+ *  Detect then track on synthetic frames: a noise textured square on a flat background stands in
+ *  for a face and the detector reports wherever the square is, so no cascade file is needed.
+ */
+public class FaceTrackerTest {
+
+    private static final int SIZE = 30;
+
+    private static final class SquareDetector implements FaceTracker.Detector {
+        Rect square = null;
+        int calls = 0;
+
+        @Override
+        public Rect[] detect(Mat gray, ReadableMap detectOptions) {
+            calls++;
+            return square == null ? new Rect[0] : new Rect[] { square.clone() };
+        }
+    }
+
+    private static Mat face;
+
+    @BeforeClass
+    public static void makeFace() {
+        nu.pattern.OpenCV.loadLocally();
+        face = new Mat(SIZE, SIZE, CvType.CV_8UC1);
+        Core.setRNGSeed(7);
+        Core.randn(face, 128, 50);
+    }
+
+    // a 160x120 frame with the face at x, y, or flat when x is negative
+    private static Mat frame(SquareDetector detector, int x, int y) {
+        Mat frame = new Mat(120, 160, CvType.CV_8UC1, new Scalar(90));
+        if (x >= 0) {
+            detector.square = new Rect(x, y, SIZE, SIZE);
+            Mat roi = frame.submat(detector.square);
+            face.copyTo(roi);
+            roi.release();
+        }
+        else {
+            detector.square = null;
+        }
+        return frame;
+    }
+
+    private static List<FaceTracker.Face> update(FaceTracker tracker, SquareDetector detector, int x, int y) {
+        Mat frame = frame(detector, x, y);
+        List<FaceTracker.Face> faces = tracker.update(frame);
+        frame.release();
+        return faces;
+    }
+
+    @Test
+    public void followsTheFaceBetweenDetections() {
+        SquareDetector detector = new SquareDetector();
+        FaceTracker tracker = new FaceTracker(detector, JavaOnlyMap.of("detectEvery", 5));
+
+        List<FaceTracker.Face> faces = update(tracker, detector, 40, 30);
+        assertEquals(1, faces.size());
+        int id = faces.get(0).id;
+        assertTrue(faces.get(0).detected);
+        assertEquals(1, detector.calls);
+
+        // the next frames follow the moving square without running the detector
+        for (int i=1;i < 5;i++) {
+            faces = update(tracker, detector, 40 + 3*i, 30 + 2*i);
+            assertEquals(1, faces.size());
+            FaceTracker.Face tracked = faces.get(0);
+            assertEquals(id, tracked.id);
+            assertFalse(tracked.detected);
+            assertEquals(40 + 3*i, tracked.rect.x, 1);
+            assertEquals(30 + 2*i, tracked.rect.y, 1);
+        }
+        assertEquals(1, detector.calls);
+
+        // detectEvery frames on the detector runs again and the face keeps its id
+        faces = update(tracker, detector, 55, 40);
+        assertEquals(2, detector.calls);
+        assertEquals(1, faces.size());
+        assertEquals(id, faces.get(0).id);
+        assertTrue(faces.get(0).detected);
+        assertEquals(6, tracker.stats()[0]);
+        assertEquals(2, tracker.stats()[1]);
+        tracker.release();
+    }
+
+    @Test
+    public void lostFaceIsLeftOutAndDetectionRunsAgain() {
+        SquareDetector detector = new SquareDetector();
+        FaceTracker tracker = new FaceTracker(detector, JavaOnlyMap.of("detectEvery", 10, "maxMisses", 0));
+
+        int id = update(tracker, detector, 40, 30).get(0).id;
+        assertEquals(1, update(tracker, detector, 42, 30).size());
+
+        // the face is gone from the frame, it no longer matches and is not reported
+        assertTrue(update(tracker, detector, -1, 0).isEmpty());
+        assertEquals(1, detector.calls);
+
+        // so the next frame runs a detection
+        List<FaceTracker.Face> faces = update(tracker, detector, 44, 30);
+        assertEquals(2, detector.calls);
+        assertEquals(1, faces.size());
+        assertEquals(id, faces.get(0).id);
+
+        // a face found far from every tracked one is a new face
+        update(tracker, detector, -1, 0);
+        faces = update(tracker, detector, 110, 80);
+        assertEquals(1, faces.size());
+        assertTrue(faces.get(0).id != id);
+        tracker.release();
+    }
+}
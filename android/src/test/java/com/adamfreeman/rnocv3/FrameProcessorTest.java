@@ -0,0 +1,130 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/*
+ *  Hand over between the camera thread and the analysis thread.
+ */
+public class FrameProcessorTest {
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    private static Mat frame(double value) {
+        return new Mat(4, 4, CvType.CV_8UC4, Scalar.all(value));
+    }
+
+    @Test
+    public void slowAnalyzerGetsTheNewestFrame() throws Exception {
+        final CountDownLatch firstStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        final List<Long> analyzed = new ArrayList<Long>();
+        final List<Double> values = new ArrayList<Double>();
+        FrameProcessor processor = new FrameProcessor(new FrameProcessor.Analyzer() {
+            @Override
+            public void analyze(Mat rgba, Mat gray, long timestampNanos) {
+                firstStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                synchronized (analyzed) {
+                    analyzed.add(timestampNanos);
+                    values.add(rgba.get(0, 0)[0]);
+                }
+                done.countDown();
+            }
+        });
+
+        Mat frame = frame(1);
+        processor.offer(frame, null, 1);
+        assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+        // the analyzer is busy with frame 1, frames 2 to 4 replace each other
+        for (int i=2;i <= 5;i++) {
+            frame.setTo(Scalar.all(i));
+            processor.offer(frame, null, i);
+        }
+        // the copy was taken at offer, changing the frame afterwards does not reach the analyzer
+        frame.setTo(Scalar.all(99));
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        processor.stop();
+
+        synchronized (analyzed) {
+            assertEquals(2, analyzed.size());
+            assertEquals(1L, (long)analyzed.get(0));
+            assertEquals(5L, (long)analyzed.get(1));
+            assertEquals(5.0, values.get(1), 0.0);
+        }
+        assertArrayEquals(new long[] { 5, 2, 3 }, processor.stats());
+    }
+
+    @Test
+    public void grayIsNullWhenNotOffered() throws Exception {
+        final CountDownLatch done = new CountDownLatch(2);
+        final Mat[] grays = new Mat[2];
+        final int[] grayValues = new int[1];
+        FrameProcessor processor = new FrameProcessor(new FrameProcessor.Analyzer() {
+            @Override
+            public void analyze(Mat rgba, Mat gray, long timestampNanos) {
+                grays[(int)timestampNanos] = gray;
+                if (gray != null) {
+                    grayValues[0] = (int)gray.get(0, 0)[0];
+                }
+                done.countDown();
+            }
+        });
+        processor.offer(frame(1), null, 0);
+        Thread.sleep(100);
+        processor.offer(frame(1), new Mat(4, 4, CvType.CV_8UC1, Scalar.all(7)), 1);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        processor.stop();
+        assertNull(grays[0]);
+        assertEquals(7, grayValues[0]);
+    }
+
+    @Test
+    public void stopWaitsForTheFrameBeingAnalyzed() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final boolean[] finished = new boolean[1];
+        FrameProcessor processor = new FrameProcessor(new FrameProcessor.Analyzer() {
+            @Override
+            public void analyze(Mat rgba, Mat gray, long timestampNanos) {
+                started.countDown();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                finished[0] = true;
+            }
+        });
+        processor.offer(frame(1), null, 1);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        processor.stop();
+        assertTrue(finished[0]);
+
+        // frames offered after stop are ignored
+        processor.offer(frame(1), null, 2);
+        assertEquals(1, processor.stats()[0]);
+    }
+}
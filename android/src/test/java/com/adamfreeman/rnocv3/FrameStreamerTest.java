@@ -0,0 +1,148 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import com.facebook.react.bridge.JavaOnlyMap;
+import com.facebook.react.bridge.WritableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/*
+ *  Frame streaming through the shared format, which is plain OpenCV and file I/O.  The jpeg and
+ *  raw formats go through Bitmap and android.util.Base64 and need a device.
+ */
+public class FrameStreamerTest {
+
+    private CameraEventCoalescerTest.RecordingSink sink;
+    private File dir;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        sink = new CameraEventCoalescerTest.RecordingSink();
+        dir = File.createTempFile("frames", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    static Mat pattern(int rows, int cols, int seed) {
+        Mat mat = new Mat(rows, cols, CvType.CV_8UC4);
+        byte[] values = new byte[rows * cols * 4];
+        for (int i=0;i < values.length;i++) {
+            values[i] = (byte)((i * 7 + seed * 13) % 256);
+        }
+        mat.put(0, 0, values);
+        return mat;
+    }
+
+    private static double maxDiff(Mat a, Mat b) {
+        Mat diff = new Mat();
+        Core.absdiff(a.reshape(1), b.reshape(1), diff);
+        double max = Core.minMaxLoc(diff).maxVal;
+        diff.release();
+        return max;
+    }
+
+    private JavaOnlyMap sharedOptions(double scale, double fps) {
+        return JavaOnlyMap.of("format", "shared", "path", new File(dir, "frame").getAbsolutePath(),
+            "scale", scale, "fps", fps);
+    }
+
+    @Test
+    public void sharedFramesAlternateSlotsAndReadBack() throws Exception {
+        FrameStreamer streamer = new FrameStreamer(sink, sharedOptions(0.5, 0));
+        Mat[] frames = { pattern(12, 16, 1), pattern(12, 16, 2), pattern(12, 16, 3) };
+        for (int i=0;i < frames.length;i++) {
+            assertTrue(streamer.offer(frames[i], 1000000000L + i));
+        }
+
+        List<WritableMap> sent = sink.bodies("onCameraFrame");
+        assertEquals(3, sent.size());
+        for (int i=0;i < frames.length;i++) {
+            WritableMap event = sent.get(i);
+            assertEquals(i % 2, event.getInt("slot"));
+            assertEquals(i + 1, event.getDouble("seq"), 0.0);
+            assertEquals(8, event.getInt("width"));
+            assertEquals(6, event.getInt("height"));
+            assertEquals(CvType.CV_8UC4, event.getInt("CvType"));
+            assertEquals(0.0, event.getDouble("dropped"), 0.0);
+        }
+
+        // slot 1 still holds the second frame, slot 0 was rewritten with the third
+        Mat expected = new Mat();
+        Imgproc.resize(frames[1], expected, new Size(), 0.5, 0.5, Imgproc.INTER_AREA);
+        Mat loaded = MatFiles.load(sent.get(1).getString("uri"));
+        assertEquals(CvType.CV_8UC4, loaded.type());
+        assertEquals(0.0, maxDiff(expected, loaded), 0.0);
+        Imgproc.resize(frames[2], expected, new Size(), 0.5, 0.5, Imgproc.INTER_AREA);
+        assertEquals(0.0, maxDiff(expected, MatFiles.load(sent.get(2).getString("uri"))), 0.0);
+        streamer.release();
+    }
+
+    @Test
+    public void framesOverTheRateAreDroppedAndCounted() throws Exception {
+        FrameStreamer streamer = new FrameStreamer(sink, sharedOptions(1.0, 10));
+        Mat frame = pattern(4, 4, 0);
+        // a 30 fps camera streamed at 10 fps
+        long frameNanos = 1000000000L / 30;
+        int sentCount = 0;
+        for (int i=0;i < 9;i++) {
+            if (streamer.offer(frame, 1000000000L + i * frameNanos)) {
+                sentCount++;
+            }
+        }
+        assertEquals(3, sentCount);
+        assertEquals(6, streamer.totalDropped());
+        List<WritableMap> sent = sink.bodies("onCameraFrame");
+        assertEquals(0.0, sent.get(0).getDouble("dropped"), 0.0);
+        assertEquals(2.0, sent.get(1).getDouble("dropped"), 0.0);
+        assertEquals(2.0, sent.get(2).getDouble("dropped"), 0.0);
+        streamer.release();
+    }
+
+    @Test
+    public void badOptionsThrow() {
+        try {
+            new FrameStreamer(sink, JavaOnlyMap.of("format", "png"));
+            fail("expected an unknown format to throw");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage().contains("png"));
+        }
+        try {
+            new FrameStreamer(sink, JavaOnlyMap.of("format", "shared"));
+            fail("expected the shared format without a path to throw");
+        } catch (IllegalArgumentException ex) {
+            assertFalse(ex.getMessage().isEmpty());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import android.media.ExifInterface;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Scalar;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ *  Decode/encode round trips through the Imgcodecs engine.  ImageCodecs only uses OpenCV so this
+ *  runs on a plain JVM with the desktop OpenCV natives.
+ */
+public class ImageCodecsTest {
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    private static Mat pattern(int rows, int cols, int type) {
+        Mat mat = new Mat(rows, cols, type);
+        int channels = mat.channels();
+        double[] values = new double[channels];
+        for (int row=0;row < rows;row++) {
+            for (int col=0;col < cols;col++) {
+                for (int c=0;c < channels;c++) {
+                    values[c] = (row * 31 + col * 17 + c * 71) % 256;
+                }
+                mat.put(row, col, values);
+            }
+        }
+        return mat;
+    }
+
+    private static double maxDiff(Mat a, Mat b) {
+        Mat diff = new Mat();
+        Core.absdiff(a, b, diff);
+        double max = 0;
+        for (int c=0;c < diff.channels();c++) {
+            Mat channel = new Mat();
+            Core.extractChannel(diff, channel, c);
+            max = Math.max(max, Core.minMaxLoc(channel).maxVal);
+            channel.release();
+        }
+        diff.release();
+        return max;
+    }
+
+    private static byte[] encode(Mat mat, String ext, MatOfInt params, boolean keepBgr) throws Exception {
+        MatOfByte out = new MatOfByte();
+        ImageCodecs.encode(mat, ext, params, keepBgr, out);
+        byte[] data = out.toArray();
+        out.release();
+        return data;
+    }
+
+    @Test
+    public void pngRoundTripKeepsRgbOrder() throws Exception {
+        Mat rgb = pattern(6, 8, CvType.CV_8UC3);
+        Mat decoded = ImageCodecs.decode(encode(rgb, ".png", null, false), false, false);
+        assertEquals(CvType.CV_8UC3, decoded.type());
+        assertEquals(0.0, maxDiff(rgb, decoded), 0.0);
+    }
+
+    @Test
+    public void pngRoundTripKeepsAlpha() throws Exception {
+        Mat rgba = pattern(5, 7, CvType.CV_8UC4);
+        Mat decoded = ImageCodecs.decode(encode(rgba, ".png", null, false), false, false);
+        assertEquals(CvType.CV_8UC4, decoded.type());
+        assertEquals(0.0, maxDiff(rgba, decoded), 0.0);
+    }
+
+    @Test
+    public void keepBgrSkipsChannelSwap() throws Exception {
+        Mat mat = new Mat(1, 1, CvType.CV_8UC3, new Scalar(10, 20, 30));
+        byte[] data = encode(mat, ".png", null, true);
+        assertArrayEquals(new double[] { 10, 20, 30 }, ImageCodecs.decode(data, false, true).get(0, 0), 0.0);
+        // the file holds BGR 10, 20, 30 so the RGB view is reversed
+        assertArrayEquals(new double[] { 30, 20, 10 }, ImageCodecs.decode(data, false, false).get(0, 0), 0.0);
+    }
+
+    @Test
+    public void grayscaleDecodeIsSingleChannel() throws Exception {
+        Mat rgb = pattern(6, 8, CvType.CV_8UC3);
+        Mat gray = ImageCodecs.decode(encode(rgb, ".png", null, false), true, false);
+        assertEquals(CvType.CV_8UC1, gray.type());
+        assertEquals(rgb.size(), gray.size());
+    }
+
+    @Test
+    public void sixteenBitPngKeepsDepth() throws Exception {
+        Mat deep = new Mat(4, 4, CvType.CV_16UC1, new Scalar(40000));
+        byte[] data = encode(deep, ".png", null, false);
+        Mat unchanged = ImageCodecs.decode(data, false, false);
+        assertEquals(CvType.CV_16UC1, unchanged.type());
+        assertEquals(0.0, maxDiff(deep, unchanged), 0.0);
+        assertEquals(CvType.CV_16UC1, ImageCodecs.decode(data, true, false).type());
+    }
+
+    @Test
+    public void jpegRoundTripIsClose() throws Exception {
+        Mat rgb = new Mat(32, 32, CvType.CV_8UC3, new Scalar(200, 120, 40));
+        MatOfInt params = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, 95);
+        Mat decoded = ImageCodecs.decode(encode(rgb, ".jpg", params, false), false, false);
+        assertEquals(CvType.CV_8UC3, decoded.type());
+        assertTrue(maxDiff(rgb, decoded) <= 4.0);
+    }
+
+    @Test
+    public void orientationRotatesAndFlips() {
+        Mat mat = new Mat(2, 3, CvType.CV_8UC1);
+        mat.put(0, 0, new byte[] { 1, 2, 3, 4, 5, 6 });
+
+        Mat rotated = FileUtils.applyOrientation(mat.clone(), ExifInterface.ORIENTATION_ROTATE_90);
+        assertEquals(3, rotated.rows());
+        assertEquals(2, rotated.cols());
+        byte[] values = new byte[6];
+        rotated.get(0, 0, values);
+        assertArrayEquals(new byte[] { 4, 1, 5, 2, 6, 3 }, values);
+
+        Mat flipped = FileUtils.applyOrientation(mat.clone(), ExifInterface.ORIENTATION_FLIP_HORIZONTAL);
+        flipped.get(0, 0, values);
+        assertArrayEquals(new byte[] { 3, 2, 1, 6, 5, 4 }, values);
+    }
+}
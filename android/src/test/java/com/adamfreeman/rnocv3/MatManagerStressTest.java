@@ -0,0 +1,161 @@
+// @author Adam G. Freeman - adamgf@gmail.com
+package com.adamfreeman.rnocv3;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/*
+ *  Hammers the MatManager slot map from many threads.  Plain Objects stand in for Mats, the
+ *  registry stores them like any other entry and counts them as 0 bytes, so no native OpenCV is
+ *  needed.
+ */
+public class MatManagerStressTest {
+
+    private static final int NUM_THREADS = 8;
+    private static final int OPS_PER_THREAD = 20000;
+
+    private interface Worker {
+        void run(int threadIndex) throws Exception;
+    }
+
+    private static void runThreads(final Worker worker) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger(0);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[NUM_THREADS];
+        for (int t=0;t < NUM_THREADS;t++) {
+            final int threadIndex = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        worker.run(threadIndex);
+                    } catch (Throwable ex) {
+                        failures.incrementAndGet();
+                        synchronized (errors) {
+                            errors.add(ex);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failures.get() > 0) {
+            throw new AssertionError(errors.get(0));
+        }
+    }
+
+    @Before
+    public void setUp() {
+        MatManager.deleteAllMats();
+        assertEquals(0, MatManager.liveCount());
+    }
+
+    @Test
+    public void handlesAreUnique() throws Exception {
+        final int perThread = 2000;
+        final Set<Integer> handles = ConcurrentHashMap.newKeySet();
+        final ConcurrentHashMap<Integer, Object> added = new ConcurrentHashMap<Integer, Object>();
+        runThreads(new Worker() {
+            @Override
+            public void run(int threadIndex) {
+                for (int i=0;i < perThread;i++) {
+                    Object obj = new Object();
+                    int matIndex = MatManager.addMat(obj);
+                    if (!handles.add(matIndex)) {
+                        throw new AssertionError("Duplicate handle " + matIndex);
+                    }
+                    added.put(matIndex, obj);
+                }
+            }
+        });
+        assertEquals(NUM_THREADS * perThread, handles.size());
+        assertEquals(NUM_THREADS * perThread, MatManager.liveCount());
+        for (Integer matIndex : handles) {
+            assertSame(added.get(matIndex), MatManager.matAtIndex(matIndex));
+        }
+    }
+
+    @Test
+    public void reusedSlotBumpsGeneration() {
+        Object first = new Object();
+        int firstIndex = MatManager.addMat(first);
+        MatManager.deleteMatAtIndex(firstIndex);
+        assertNull(MatManager.matAtIndex(firstIndex));
+
+        // the freed slot is the top of this thread's free stripe so it is handed out again
+        Object second = new Object();
+        int secondIndex = MatManager.addMat(second);
+        assertEquals(firstIndex & 0xffff, secondIndex & 0xffff);
+        assertNotEquals(firstIndex, secondIndex);
+        assertNull(MatManager.matAtIndex(firstIndex));
+        assertSame(second, MatManager.matAtIndex(secondIndex));
+
+        // deleting through the stale handle must not touch the new entry
+        MatManager.deleteMatAtIndex(firstIndex);
+        assertSame(second, MatManager.matAtIndex(secondIndex));
+        assertEquals(1, MatManager.liveCount());
+    }
+
+    @Test
+    public void noEntriesLostUnderConcurrentAddGetDelete() throws Exception {
+        final ConcurrentHashMap<Integer, Object> kept = new ConcurrentHashMap<Integer, Object>();
+        runThreads(new Worker() {
+            @Override
+            public void run(int threadIndex) {
+                ArrayList<Integer> mine = new ArrayList<Integer>();
+                ArrayList<Object> objects = new ArrayList<Object>();
+                for (int i=0;i < OPS_PER_THREAD;i++) {
+                    Object obj = new Object();
+                    int matIndex = MatManager.addMat(obj);
+                    if (MatManager.matAtIndex(matIndex) != obj) {
+                        throw new AssertionError("Handle " + matIndex + " does not resolve to its object");
+                    }
+                    mine.add(matIndex);
+                    objects.add(obj);
+                    // delete two of every three so slots are constantly reused across threads
+                    if (i % 3 != 0) {
+                        int victim = mine.size() - 1 - (i % 2);
+                        int victimIndex = mine.remove(victim);
+                        objects.remove(victim);
+                        MatManager.deleteMatAtIndex(victimIndex);
+                        if (MatManager.matAtIndex(victimIndex) != null) {
+                            throw new AssertionError("Deleted handle " + victimIndex + " still resolves");
+                        }
+                        // a second delete of the same handle is a stale no-op
+                        MatManager.deleteMatAtIndex(victimIndex);
+                    }
+                }
+                for (int i=0;i < mine.size();i++) {
+                    if (MatManager.matAtIndex(mine.get(i)) != objects.get(i)) {
+                        throw new AssertionError("Live handle " + mine.get(i) + " lost its object");
+                    }
+                    if (kept.put(mine.get(i), objects.get(i)) != null) {
+                        throw new AssertionError("Handle " + mine.get(i) + " is live in two threads");
+                    }
+                }
+            }
+        });
+        assertEquals(kept.size(), MatManager.liveCount());
+        for (Integer matIndex : kept.keySet()) {
+            assertSame(kept.get(matIndex), MatManager.matAtIndex(matIndex));
+        }
+    }
+}
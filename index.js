@@ -1,31 +1,45 @@
-import { NativeModules } from 'react-native';
+import { NativeModules, Platform } from 'react-native';
 
 const { RNOpencv3 } = NativeModules;
 const resolveAssetSource = require('react-native/Libraries/Image/resolveAssetSource');
 const downloadAssetSource = require('./downloadAssetSource');
 
 
-const useCascadeOnImage = (cascadeLocation, image) => {
+const imageToMat = async (image) => {
+	// get the image in correct string format
+	let finalImageUri = '';
+	if (typeof image === 'string' && image.startsWith('file')) {
+		finalImageUri = image.slice(6);
+	} else {
+		const sourceUri = await resolveAssetSource(image).uri;
+		finalImageUri = await downloadAssetSource(sourceUri);
+	}
+	return RNOpencv3.imageToMat(finalImageUri);
+};
+
+// options: scaleFactor, minNeighbors, minSize, maxSize, downscale, equalizeHist
+const useCascadeOnImage = (cascadeLocation, image, options = {}) => {
 	return new Promise(async (resolve, reject) => {
-		// get the image in correct string format
-		let finalImageUri = '';
-		if (typeof image === 'string' && image.startsWith('file')) {
-			finalImageUri = image.slice(6);
-		} else {
-			const sourceUri = await resolveAssetSource(image).uri;
-			finalImageUri = await downloadAssetSource(sourceUri);
-		}
-		const srcMat = await RNOpencv3.imageToMat(finalImageUri);
-		RNOpencv3.useCascadeOnImage(cascadeLocation, srcMat)
+		const srcMat = await imageToMat(image);
+		// detection options are only supported on android
+		const detection = Platform.OS === 'android'
+			? RNOpencv3.useCascadeOnImage(cascadeLocation, srcMat, options)
+			: RNOpencv3.useCascadeOnImage(cascadeLocation, srcMat);
+		// detections come back as an array of {x, y, width, height, id},
+		// iOS still sends them as a JSON string
+		detection
 			.then((res) => {
 				if (res === null || res === '') {
 					resolve([]);
-				}
-				let objects = JSON.parse(res).objects;
-				if (objects) {
-					resolve(objects);
+				} else if (typeof res === 'string') {
+					const objects = JSON.parse(res).objects;
+					if (objects) {
+						resolve(objects);
+					} else {
+						reject(res);
+					}
 				} else {
-					reject(res);
+					resolve(res);
 				}
 			})
 			.catch((err) => {
@@ -34,4 +48,28 @@ const useCascadeOnImage = (cascadeLocation, image) => {
 	});
 };
 
-export { useCascadeOnImage };
+// options.packed gives flat [x0, y0, w0, h0, x1, ...] arrays, one per image
+const useCascadeOnImages = async (cascadeLocation, images, options = {}) => {
+	// iOS has no batch method, detect one image at a time
+	if (Platform.OS !== 'android') {
+		const results = [];
+		for (const image of images) {
+			const objects = await useCascadeOnImage(cascadeLocation, image, options);
+			results.push(options.packed
+				? objects.reduce((packed, o) => packed.concat([o.x, o.y, o.width, o.height]), [])
+				: objects);
+		}
+		return results;
+	}
+	const srcMats = [];
+	try {
+		for (const image of images) {
+			srcMats.push(await imageToMat(image));
+		}
+		return await RNOpencv3.useCascadeOnImages(cascadeLocation, srcMats, options);
+	} finally {
+		srcMats.forEach((srcMat) => RNOpencv3.deleteMat(srcMat));
+	}
+};
+
+export { useCascadeOnImage, useCascadeOnImages };